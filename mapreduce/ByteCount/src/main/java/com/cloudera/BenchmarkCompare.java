@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+/**
+ * Summarizes and compares BenchmarkRunner results.
+ * <p>
+ * Given one CSV file, prints the median, percentiles and a bootstrap
+ * confidence interval of the median for one metric. Given a baseline and a
+ * candidate, also bootstraps the ratio of their medians and exits with
+ * status 2 if the candidate is slower than the baseline by more than the
+ * threshold, with the whole confidence interval above 1.
+ * Warmup and failed runs are ignored.
+ */
+public class BenchmarkCompare {
+
+  private static final int EXIT_REGRESSION = 2;
+
+  /**
+   * Order statistics of one configuration's samples.
+   */
+  static class Summary {
+    final String label;
+    final double[] samples;
+
+    Summary(String label, double[] samples) {
+      this.label = label;
+      this.samples = samples.clone();
+      Arrays.sort(this.samples);
+    }
+
+    double percentile(double p) {
+      return BenchmarkCompare.percentile(samples, p);
+    }
+
+    double mean() {
+      double sum = 0;
+      for (double s : samples) {
+        sum += s;
+      }
+      return sum / samples.length;
+    }
+
+    double stddev() {
+      double mean = mean();
+      double sq = 0;
+      for (double s : samples) {
+        sq += (s - mean) * (s - mean);
+      }
+      return samples.length < 2 ? 0 : Math.sqrt(sq / (samples.length - 1));
+    }
+  }
+
+  /**
+   * Percentile of sorted values with linear interpolation, p in [0, 100].
+   */
+  static double percentile(double[] sorted, double p) {
+    if (sorted.length == 0) {
+      return Double.NaN;
+    }
+    double rank = p / 100.0 * (sorted.length - 1);
+    int lo = (int)Math.floor(rank);
+    int hi = (int)Math.ceil(rank);
+    return sorted[lo] + (sorted[hi] - sorted[lo]) * (rank - lo);
+  }
+
+  static double median(double[] values) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return percentile(sorted, 50);
+  }
+
+  private static double[] resample(double[] values, Random random) {
+    double[] out = new double[values.length];
+    for (int i = 0; i < out.length; i++) {
+      out[i] = values[random.nextInt(values.length)];
+    }
+    return out;
+  }
+
+  /**
+   * Bootstrap confidence interval of the median.
+   */
+  static double[] bootstrapMedian(double[] values, int rounds,
+      double confidence, Random random) {
+    double[] medians = new double[rounds];
+    for (int i = 0; i < rounds; i++) {
+      medians[i] = median(resample(values, random));
+    }
+    return interval(medians, confidence);
+  }
+
+  /**
+   * Bootstrap confidence interval of median(candidate) / median(baseline).
+   */
+  static double[] bootstrapRatio(double[] baseline, double[] candidate,
+      int rounds, double confidence, Random random) {
+    double[] ratios = new double[rounds];
+    for (int i = 0; i < rounds; i++) {
+      ratios[i] = median(resample(candidate, random))
+          / median(resample(baseline, random));
+    }
+    return interval(ratios, confidence);
+  }
+
+  private static double[] interval(double[] estimates, double confidence) {
+    Arrays.sort(estimates);
+    double tail = (1 - confidence) / 2 * 100;
+    return new double[] {
+      percentile(estimates, tail), percentile(estimates, 100 - tail)
+    };
+  }
+
+  /**
+   * Read one metric column from a BenchmarkRunner CSV, skipping warmup
+   * and failed runs.
+   */
+  static double[] readMetric(String file, String metric) throws IOException {
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String header = reader.readLine();
+      if (header == null) {
+        throw new IOException(file + " is empty");
+      }
+      List<String> columns = Arrays.asList(header.split(","));
+      int metricCol = columns.indexOf(metric);
+      int warmupCol = columns.indexOf("warmup");
+      int successCol = columns.indexOf("success");
+      if (metricCol < 0) {
+        throw new IOException("No column " + metric + " in " + file);
+      }
+      List<Double> values = new ArrayList<Double>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(",");
+        if (warmupCol >= 0 && Boolean.parseBoolean(fields[warmupCol])) {
+          continue;
+        }
+        if (successCol >= 0 && !Boolean.parseBoolean(fields[successCol])) {
+          continue;
+        }
+        values.add(Double.parseDouble(fields[metricCol]));
+      }
+      if (values.isEmpty()) {
+        throw new IOException("No measured runs in " + file);
+      }
+      double[] out = new double[values.size()];
+      for (int i = 0; i < out.length; i++) {
+        out[i] = values.get(i);
+      }
+      return out;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void printSummary(Summary s, double[] ci, double confidence) {
+    System.out.println(String.format("%s: n=%d mean=%.1f stddev=%.1f "
+        + "min=%.1f p10=%.1f p50=%.1f p90=%.1f max=%.1f", s.label,
+        s.samples.length, s.mean(), s.stddev(), s.samples[0],
+        s.percentile(10), s.percentile(50), s.percentile(90),
+        s.samples[s.samples.length - 1]));
+    System.out.println(String.format("\tmedian %.0f%% CI [%.1f, %.1f]",
+        confidence * 100, ci[0], ci[1]));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options();
+    options.addOption(OptionBuilder.withArgName("column").hasArg()
+        .withDescription("metric to compare (default job_ms)")
+        .create("metric"));
+    options.addOption(OptionBuilder.withArgName("fraction").hasArg()
+        .withDescription("allowed slowdown of the median (default 0.05)")
+        .create("threshold"));
+    options.addOption(OptionBuilder.withArgName("fraction").hasArg()
+        .withDescription("confidence level (default 0.95)")
+        .create("confidence"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("bootstrap rounds (default 10000)")
+        .create("rounds"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("bootstrap random seed").create("seed"));
+
+    CommandLine line = new BasicParser().parse(options, args);
+    String[] files = line.getArgs();
+    if (files.length < 1 || files.length > 2) {
+      System.err.println("Usage: BenchmarkCompare [-metric <column>] "
+          + "[-threshold <fraction>] [-confidence <fraction>] "
+          + "[-rounds <n>] [-seed <n>] <baseline.csv> [candidate.csv]");
+      System.exit(1);
+    }
+    String metric = line.getOptionValue("metric", "job_ms");
+    double threshold =
+        Double.parseDouble(line.getOptionValue("threshold", "0.05"));
+    double confidence =
+        Double.parseDouble(line.getOptionValue("confidence", "0.95"));
+    int rounds = Integer.parseInt(line.getOptionValue("rounds", "10000"));
+    Random random = new Random(Long.parseLong(line.getOptionValue("seed", "0")));
+
+    System.out.println("Metric " + metric);
+    Summary baseline = new Summary(files[0], readMetric(files[0], metric));
+    printSummary(baseline,
+        bootstrapMedian(baseline.samples, rounds, confidence, random),
+        confidence);
+    if (files.length == 1) {
+      System.exit(0);
+    }
+
+    Summary candidate = new Summary(files[1], readMetric(files[1], metric));
+    printSummary(candidate,
+        bootstrapMedian(candidate.samples, rounds, confidence, random),
+        confidence);
+
+    double ratio = candidate.percentile(50) / baseline.percentile(50);
+    double[] ci = bootstrapRatio(baseline.samples, candidate.samples, rounds,
+        confidence, random);
+    System.out.println(String.format("candidate/baseline median ratio %.3f, "
+        + "%.0f%% CI [%.3f, %.3f]", ratio, confidence * 100, ci[0], ci[1]));
+
+    if (ratio > 1 + threshold && ci[0] > 1) {
+      System.out.println(String.format("REGRESSION: %s is %.1f%% slower than "
+          + "%s (threshold %.1f%%)", candidate.label, (ratio - 1) * 100,
+          baseline.label, threshold * 100));
+      System.exit(EXIT_REGRESSION);
+    }
+    if (ci[1] < 1) {
+      System.out.println(String.format("Improvement: %s is %.1f%% faster",
+          candidate.label, (1 - ratio) * 100));
+    } else {
+      System.out.println("No significant regression");
+    }
+    System.exit(0);
+  }
+}
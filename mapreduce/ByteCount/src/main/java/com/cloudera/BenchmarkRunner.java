@@ -0,0 +1,330 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobCounter;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskReport;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import com.cloudera.ByteBufferRecordReader.READ_COUNTER;
+
+/**
+ * Runs ByteCount repeatedly and records millisecond phase timings.
+ * <p>
+ * Jobs are submitted in-process. Phase boundaries come from the task
+ * reports (first map start, last map finish, last reduce finish) rather than
+ * from scraping console output, and each run's timings and counters are
+ * appended to a CSV file and written to a JSON file.
+ */
+public class BenchmarkRunner {
+
+  /** Column order of the CSV output, also read by BenchmarkCompare. */
+  static final String[] COLUMNS = {
+    "name", "iteration", "warmup", "success", "wall_ms", "job_ms",
+    "queue_ms", "map_ms", "reduce_ms", "maps", "reduces", "bytes_read",
+    "local_bytes_read", "scr_bytes_read", "zcr_bytes_read", "cpu_ms",
+    "gc_ms", "map_task_ms", "data_local_maps"
+  };
+
+  /**
+   * Timings and counters of a single job run.
+   */
+  static class RunResult {
+    final String name;
+    final int iteration;
+    final boolean warmup;
+    boolean success;
+    double wallMs;
+    long jobMs;
+    long queueMs;
+    long mapMs;
+    long reduceMs;
+    int maps;
+    int reduces;
+    Counters counters;
+
+    RunResult(String name, int iteration, boolean warmup) {
+      this.name = name;
+      this.iteration = iteration;
+      this.warmup = warmup;
+    }
+
+    private long counter(Enum<?> key) {
+      return counters == null ? 0 : counters.findCounter(key).getValue();
+    }
+
+    Object[] values() {
+      return new Object[] {
+        name, iteration, warmup, success, Math.round(wallMs * 1000) / 1000.0,
+        jobMs, queueMs, mapMs, reduceMs, maps, reduces,
+        counter(READ_COUNTER.BYTES_READ),
+        counter(READ_COUNTER.LOCAL_BYTES_READ),
+        counter(READ_COUNTER.SCR_BYTES_READ),
+        counter(READ_COUNTER.ZCR_BYTES_READ),
+        counter(TaskCounter.CPU_MILLISECONDS),
+        counter(TaskCounter.GC_TIME_MILLIS),
+        counter(JobCounter.MILLIS_MAPS),
+        counter(JobCounter.DATA_LOCAL_MAPS)
+      };
+    }
+  }
+
+  private final Configuration conf;
+  private final String name;
+  private final String inputBase;
+  private final String outputBase;
+  private final String dropCachesCommand;
+  private final String verifyMode;
+  private final List<RunResult> results = new ArrayList<RunResult>();
+
+  /**
+   * @param verifyMode as for ByteCount -verify, or null to not check the
+   *     output of the measured runs.
+   */
+  public BenchmarkRunner(Configuration conf, String name, String inputBase,
+      String outputBase, String dropCachesCommand, String verifyMode) {
+    this.conf = conf;
+    this.name = name;
+    this.inputBase = inputBase;
+    this.outputBase = outputBase;
+    this.dropCachesCommand = dropCachesCommand;
+    this.verifyMode = verifyMode;
+  }
+
+  public List<RunResult> getResults() {
+    return results;
+  }
+
+  /**
+   * Run the warmup iterations, then the measured ones, appending each
+   * result to csv as it completes.
+   */
+  public void run(int warmups, int iterations, PrintStream csv)
+      throws Exception {
+    for (int i = 0; i < warmups + iterations; i++) {
+      boolean warmup = i < warmups;
+      int iteration = warmup ? i + 1 : i - warmups + 1;
+      System.out.println("Doing " + (warmup ? "warmup" : "measured")
+          + " run " + iteration + "...");
+      RunResult result = runOnce(iteration, warmup);
+      results.add(result);
+      printRow(csv, result.values());
+      csv.flush();
+      System.out.println(String.format("\tjob %d ms, map %d ms, reduce %d ms",
+          result.jobMs, result.mapMs, result.reduceMs));
+    }
+  }
+
+  private RunResult runOnce(int iteration, boolean warmup) throws Exception {
+    RunResult result = new RunResult(name, iteration, warmup);
+    Path output = new Path(outputBase);
+    FileSystem fs = output.getFileSystem(conf);
+    fs.delete(output, true);
+    if (dropCachesCommand != null) {
+      runCommand(dropCachesCommand);
+    }
+
+    Job job = ByteCount.createJob(new Configuration(conf), inputBase,
+        outputBase);
+    long startNanos = System.nanoTime();
+    result.success = job.waitForCompletion(false);
+    result.wallMs = (System.nanoTime() - startNanos) / 1000000.0;
+
+    result.jobMs = job.getFinishTime() - job.getStartTime();
+    result.counters = job.getCounters();
+
+    if (TaskProfiler.isEnabled(job.getConfiguration())) {
+      // The output, and the profiles in it, go away with the next run
+      Path svg = TaskProfiler.render(job.getConfiguration(),
+          name + (warmup ? " warmup " : " run ") + iteration);
+      if (svg != null) {
+        String local = name + "-" + (warmup ? "warmup-" : "") + iteration
+            + "-flamegraph.svg";
+        svg.getFileSystem(conf).copyToLocalFile(svg, new Path(local));
+        System.out.println("\tWrote flamegraph to " + local);
+      }
+    }
+
+    TaskReport[] mapReports = job.getTaskReports(TaskType.MAP);
+    TaskReport[] reduceReports = job.getTaskReports(TaskType.REDUCE);
+    result.maps = mapReports.length;
+    result.reduces = reduceReports.length;
+    long firstMapStart = Long.MAX_VALUE;
+    long lastMapFinish = 0;
+    for (TaskReport report : mapReports) {
+      firstMapStart = Math.min(firstMapStart, report.getStartTime());
+      lastMapFinish = Math.max(lastMapFinish, report.getFinishTime());
+    }
+    long lastReduceFinish = lastMapFinish;
+    for (TaskReport report : reduceReports) {
+      lastReduceFinish = Math.max(lastReduceFinish, report.getFinishTime());
+    }
+    if (mapReports.length > 0) {
+      result.queueMs = firstMapStart - job.getStartTime();
+      result.mapMs = lastMapFinish - firstMapStart;
+      result.reduceMs = lastReduceFinish - lastMapFinish;
+    }
+
+    // After the timings are taken, so verifying doesn't count against them
+    if (verifyMode != null && !warmup && result.success) {
+      result.success = ByteCountVerifier.verify(conf, new Path(inputBase),
+          output, verifyMode);
+    }
+    return result;
+  }
+
+  /**
+   * Run a shell command between iterations, e.g. to drop the page cache.
+   */
+  static void runCommand(String command)
+      throws IOException, InterruptedException {
+    ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", command);
+    pb.redirectErrorStream(true);
+    Process p = pb.start();
+    InputStream out = p.getInputStream();
+    try {
+      IOUtils.copyBytes(out, System.out, 4096, false);
+    } finally {
+      out.close();
+    }
+    int ret = p.waitFor();
+    if (ret != 0) {
+      throw new IOException("'" + command + "' exited with status " + ret);
+    }
+  }
+
+  static void printRow(PrintStream out, Object[] values) {
+    StringBuilder bld = new StringBuilder();
+    String prefix = "";
+    for (Object v : values) {
+      bld.append(prefix);
+      bld.append(v);
+      prefix = ",";
+    }
+    out.println(bld.toString());
+  }
+
+  public void writeJson(String file) throws IOException {
+    JsonGenerator json = new JsonFactory().createJsonGenerator(
+        new FileOutputStream(file), JsonEncoding.UTF8);
+    json.useDefaultPrettyPrinter();
+    try {
+      json.writeStartArray();
+      for (RunResult result : results) {
+        Object[] values = result.values();
+        json.writeStartObject();
+        for (int i = 0; i < COLUMNS.length; i++) {
+          Object v = values[i];
+          if (v instanceof Boolean) {
+            json.writeBooleanField(COLUMNS[i], (Boolean)v);
+          } else if (v instanceof String) {
+            json.writeStringField(COLUMNS[i], (String)v);
+          } else if (v instanceof Double) {
+            json.writeNumberField(COLUMNS[i], (Double)v);
+          } else {
+            json.writeNumberField(COLUMNS[i], ((Number)v).longValue());
+          }
+        }
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+    } finally {
+      json.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    JobConf conf = new JobConf(new Configuration());
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+    Options options = ByteCount.createOptions();
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("unmeasured runs before the measured ones")
+        .create("warmups"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("number of measured runs").create("iterations"));
+    options.addOption(OptionBuilder.withArgName("label").hasArg()
+        .withDescription("configuration name recorded with each run")
+        .create("name"));
+    options.addOption(OptionBuilder.withArgName("prefix").hasArg()
+        .withDescription("write <prefix>.csv and <prefix>.json")
+        .create("results"));
+    options.addOption(OptionBuilder.withArgName("command").hasArg()
+        .withDescription("shell command run before every job")
+        .create("dropCaches"));
+
+    CommandLine line = new BasicParser().parse(options, remArgs);
+    ByteCount.applyOptions(line, conf);
+    remArgs = line.getArgs();
+    if (remArgs.length != 2 || !line.hasOption("results")) {
+      System.err.println("Usage: BenchmarkRunner -results <prefix> "
+          + "[-name <label>] [-warmups <n>] [-iterations <n>] "
+          + "[-dropCaches <command>] [ByteCount options] "
+          + "<inputBase> <outputBase>");
+      System.exit(1);
+    }
+    int warmups = Integer.parseInt(line.getOptionValue("warmups", "1"));
+    int iterations = Integer.parseInt(line.getOptionValue("iterations", "10"));
+    String prefix = line.getOptionValue("results");
+
+    BenchmarkRunner runner = new BenchmarkRunner(conf,
+        line.getOptionValue("name", "bytecount"), remArgs[0], remArgs[1],
+        line.getOptionValue("dropCaches"), line.getOptionValue("verify"));
+    PrintStream csv = new PrintStream(new FileOutputStream(prefix + ".csv"),
+        false, "UTF-8");
+    try {
+      printRow(csv, COLUMNS);
+      runner.run(warmups, iterations, csv);
+    } finally {
+      csv.close();
+    }
+    runner.writeJson(prefix + ".json");
+
+    boolean success = true;
+    for (RunResult result : runner.getResults()) {
+      success &= result.success;
+    }
+    System.out.println("Done! Wrote " + prefix + ".csv and " + prefix
+        + ".json");
+    System.exit(success ? 0 : 1);
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Counts the zero-copy buffers this JVM holds, so leases that are never
+ * returned with releaseBuffer show up before they exhaust the client's mmap
+ * slots, even when task JVMs are reused.
+ * <p>
+ * With {@link #LEAK_DEBUG} on, the stack that acquired each outstanding
+ * buffer is also kept, so leaks can be traced to their allocation site.
+ * That costs a stack trace per read, so it is off by default.
+ */
+public final class BufferLeases {
+
+  /** Record where each outstanding buffer was acquired. */
+  public static final String LEAK_DEBUG = "bytecount.buffer.leak.debug";
+
+  private static final AtomicLong acquired = new AtomicLong();
+  private static final AtomicLong released = new AtomicLong();
+  private static volatile boolean debug;
+  private static final Map<ByteBuffer, Throwable> sites =
+      new IdentityHashMap<ByteBuffer, Throwable>();
+
+  private BufferLeases() {
+  }
+
+  public static void setDebug(boolean enabled) {
+    debug = enabled;
+  }
+
+  public static void acquired(ByteBuffer buf) {
+    acquired.incrementAndGet();
+    if (debug) {
+      synchronized (sites) {
+        sites.put(buf, new Throwable("Zero-copy buffer acquired here"));
+      }
+    }
+  }
+
+  public static void released(ByteBuffer buf) {
+    released.incrementAndGet();
+    if (debug) {
+      synchronized (sites) {
+        sites.remove(buf);
+      }
+    }
+  }
+
+  public static long getAcquired() {
+    return acquired.get();
+  }
+
+  public static long getReleased() {
+    return released.get();
+  }
+
+  /**
+   * Buffers acquired by this JVM and not yet released.
+   */
+  public static long getOutstanding() {
+    return acquired.get() - released.get();
+  }
+
+  /**
+   * Log the outstanding leases, with their allocation sites if
+   * {@link #LEAK_DEBUG} is on.
+   */
+  public static void logOutstanding(Log log) {
+    long outstanding = getOutstanding();
+    if (outstanding == 0) {
+      return;
+    }
+    log.warn(outstanding + " zero-copy buffers were not released");
+    synchronized (sites) {
+      for (Throwable site : sites.values()) {
+        log.warn("Unreleased buffer", site);
+      }
+    }
+  }
+}
@@ -19,6 +19,7 @@
 package com.cloudera;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -39,6 +40,30 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 public class ByteBufferInputFormat extends
     FileInputFormat<LongWritable, ByteBufferWritable> {
 
+  /**
+   * Whether to round split sizes down to a whole number of blocks, so no
+   * split starts or ends in the middle of a block. On by default.
+   */
+  public static final String ALIGN_SPLITS = "bytecount.split.align";
+
+  private boolean alignSplits = true;
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    alignSplits = job.getConfiguration().getBoolean(ALIGN_SPLITS, true);
+    return super.getSplits(job);
+  }
+
+  @Override
+  protected long computeSplitSize(long blockSize, long minSize,
+      long maxSize) {
+    long splitSize = super.computeSplitSize(blockSize, minSize, maxSize);
+    if (alignSplits && blockSize > 0) {
+      splitSize = Math.max(blockSize, splitSize / blockSize * blockSize);
+    }
+    return splitSize;
+  }
+
   @Override
   public RecordReader<LongWritable, ByteBufferWritable> createRecordReader(
       InputSplit split, TaskAttemptContext context) throws IOException,
@@ -23,19 +23,22 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.HasEnhancedByteBufferAccess;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.ReadOption;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.hdfs.DFSInputStream;
 import org.apache.hadoop.hdfs.DFSInputStream.ReadStatistics;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.ByteBufferPool;
 import org.apache.hadoop.io.ElasticByteBufferPool;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.compress.CodecPool;
@@ -60,9 +63,19 @@ public class ByteBufferRecordReader
   private static final Log LOG 
       = LogFactory.getLog(ByteBufferRecordReader.class);
 
+  /** Record size for streams without zero-copy reads. */
+  private static final int COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+  /** "striped" (the default) or "elastic", shared by readers in the JVM. */
+  public static final String BUFFER_POOL = "bytecount.buffer.pool";
+  /** Most bytes the striped pool keeps for reuse. */
+  public static final String BUFFER_POOL_MAX = "bytecount.buffer.pool.max";
+
+  private static ByteBufferPool sharedPool;
+
   private long start;
   private long end;
   private long pos;
+  private long blockSize;
   private FSDataInputStream fileIn;
   private Seekable filePosition;
   private LongWritable key;
@@ -72,8 +85,22 @@ public class ByteBufferRecordReader
   private InputStream inputStream;
   private TaskAttemptContext context;
   private ReadStatistics readStats;
-  private ElasticByteBufferPool bufferPool;
+  private ByteBufferPool bufferPool;
   private EnumSet<ReadOption> readOption;
+  private boolean valueLeased;
+  private boolean valuePooled;
+  private boolean zeroCopyReadable;
+  private boolean byteBufferReadable;
+  private long leases;
+  private long releases;
+  private ShortCircuitStats shortCircuitStats;
+  private HedgedReads hedgedReads;
+  private ReadHints readHints;
+  private ChunkSizer chunkSizer;
+  private ChunkSizer.Mode zeroCopyMode = ChunkSizer.Mode.MMAP;
+  private ChecksumVerifier checksums;
+  private ChecksumVerifier.Chunk pendingChunk;
+  private byte[] rereadBuffer;
 
   /**
    * Enum for accessing read statistics.
@@ -82,12 +109,51 @@ public class ByteBufferRecordReader
     BYTES_READ,
     LOCAL_BYTES_READ,
     SCR_BYTES_READ,
-    ZCR_BYTES_READ
+    ZCR_BYTES_READ,
+    ZCR_BUFFERS_ACQUIRED,
+    ZCR_BUFFERS_RELEASED,
+    /** Buffers still held when the reader closed; should stay 0. */
+    ZCR_BUFFERS_OUTSTANDING,
+    HEDGED_READS,
+    HEDGED_READ_WINS,
+    HEDGED_READ_WASTED,
+    VERIFIED_BYTES,
+    /** Mmapped bytes left out of the sample. */
+    UNVERIFIED_BYTES,
+    CHECKSUM_FAILURES,
+    CHECKSUM_REREADS,
+    /** Reads through HasEnhancedByteBufferAccess. */
+    ZERO_COPY_TIER_READS,
+    /** Reads into pooled direct buffers through ByteBufferReadable. */
+    BYTE_BUFFER_TIER_READS,
+    /** Reads into pooled heap buffers, when nothing else works. */
+    HEAP_TIER_READS
   };
 
   public ByteBufferRecordReader() {
   }
 
+  /**
+   * The pool all readers in this JVM share, so buffers one split leaves
+   * behind serve the next, whichever thread reads it.
+   */
+  private static synchronized ByteBufferPool getBufferPool(
+      Configuration conf) {
+    if (sharedPool == null) {
+      String name = conf.get(BUFFER_POOL, "striped");
+      if (name.equals("elastic")) {
+        sharedPool = new ElasticByteBufferPool();
+      } else if (name.equals("striped")) {
+        sharedPool = new StripedByteBufferPool(conf.getLong(BUFFER_POOL_MAX,
+            StripedByteBufferPool.DEFAULT_MAX_POOLED));
+      } else {
+        throw new IllegalArgumentException("Unknown " + BUFFER_POOL + " "
+            + name + ", expected striped or elastic");
+      }
+    }
+    return sharedPool;
+  }
+
   @Override
   public void initialize(InputSplit genericSplit,
                          TaskAttemptContext context) throws IOException {
@@ -107,10 +173,20 @@ public class ByteBufferRecordReader
     // open the file and seek to the start of the split
     final FileSystem fs = file.getFileSystem(job);
     fileIn = fs.open(file);
+    readHints = new ReadHints(job, fileIn);
+    chunkSizer = ChunkSizer.create(job);
+    blockSize = fs.getFileStatus(file).getBlockSize();
+    if (fs instanceof DistributedFileSystem) {
+      shortCircuitStats =
+          ShortCircuitStats.create(((DistributedFileSystem)fs).getClient());
+    }
 
     this.readStats = new ReadStatistics();
-    this.bufferPool = new ElasticByteBufferPool();
-    boolean skipChecksums = job.getBoolean("bytecount.skipChecksums", false);
+    this.bufferPool = getBufferPool(job);
+    BufferLeases.setDebug(job.getBoolean(BufferLeases.LEAK_DEBUG, false));
+    // Verified reads skip the client's checksums, so they can be mmapped
+    boolean skipChecksums = job.getBoolean("bytecount.skipChecksums", false)
+        || job.getBoolean(ChecksumVerifier.VERIFY, false);
     this.readOption =
         skipChecksums ? EnumSet.of(ReadOption.SKIP_CHECKSUMS) : EnumSet
             .noneOf(ReadOption.class);
@@ -123,12 +199,34 @@ public class ByteBufferRecordReader
           = codec.createInputStream(fileIn, decompressor);
       filePosition = cIn;
       inputStream = cIn;
+      byteBufferReadable = cIn instanceof ByteBufferReadable;
       LOG.info(
           "Compressed input; cannot compute number of records in the split");
     } else {
+      hedgedReads = HedgedReads.open(job, file);
+      if (job.getBoolean(ChecksumVerifier.VERIFY, false)
+          && fs instanceof DistributedFileSystem) {
+        checksums = new ChecksumVerifier(job,
+            ((DistributedFileSystem)fs).getClient(), file, start,
+            splitLength);
+        if (!checksums.canVerify()) {
+          // Every chunk would be read twice; read once with checksums
+          LOG.warn("No readable meta files for " + file + " at " + start
+              + "; reading with checksums instead of verifying mmaps");
+          checksums = null;
+          if (!job.getBoolean("bytecount.skipChecksums", false)) {
+            readOption = EnumSet.noneOf(ReadOption.class);
+          }
+        }
+      }
       fileIn.seek(start);
       filePosition = fileIn;
       inputStream = fileIn;
+      // FSDataInputStream implements both, but only works when the stream
+      // it wraps does; other file systems' reads would just be copied
+      InputStream wrapped = fileIn.getWrappedStream();
+      zeroCopyReadable = wrapped instanceof HasEnhancedByteBufferAccess;
+      byteBufferReadable = wrapped instanceof ByteBufferReadable;
       LOG.info("Split pos = " + start + " length " + splitLength);
     }
   }
@@ -141,41 +239,262 @@ public class ByteBufferRecordReader
     if (value == null) {
       value = new ByteBufferWritable();
     }
-    if (pos >= end) {
+    if (pos >= end && pendingChunk == null) {
       return false;
     }
     
     int numBytesRead = 0;
+    if (chunkSizer != null) {
+      chunkSizer.startRead();
+    }
+    // Read blocks with no local replica with hedged positional reads
+    if (pendingChunk == null && hedgedReads != null
+        && hedgedReads.isRemote(pos)) {
+      ByteBuffer buf;
+      if (chunkSizer != null) {
+        int size = (int)Math.min(chunkSizer.getSize(ChunkSizer.Mode.PREAD),
+            Integer.MAX_VALUE);
+        buf = hedgedReads.read(pos, end - pos, size);
+        chunkSizer.endRead(ChunkSizer.Mode.PREAD, size, buf.remaining());
+      } else {
+        buf = hedgedReads.read(pos, end - pos);
+      }
+      numBytesRead += buf.remaining();
+      pos += buf.remaining();
+      releaseValue();
+      value.setByteBuffer(buf);
+    }
     // Use zero-copy ByteBuffer reads if available
-    if (inputStream instanceof FSDataInputStream) {
+    else if (zeroCopyReadable) {
       FSDataInputStream fsIn = (FSDataInputStream)inputStream;
-      ByteBuffer buf = fsIn.read(bufferPool, (int)(end-start), readOption);
-      numBytesRead += buf.limit();
-      pos += buf.limit();
-      // Update stats
-      InputStream wrappedStream = fsIn.getWrappedStream();
-      if (wrappedStream instanceof DFSInputStream) {
-        DFSInputStream dfsIn = (DFSInputStream)wrappedStream;
-        updateStats(dfsIn.getReadStatistics());
+      if (checksums == null) {
+        ByteBuffer buf = readZeroCopy(fsIn);
+        if (buf == null) {
+          // EOF before the end of the split, e.g. the file was truncated
+          return false;
+        }
+        numBytesRead += buf.limit();
+        // Switch out the buffers
+        releaseValue();
+        value.setByteBuffer(buf);
+        valueLeased = true;
+      } else {
+        ChecksumVerifier.Chunk chunk =
+            pendingChunk != null ? pendingChunk : readChunk(fsIn);
+        pendingChunk = null;
+        if (chunk == null) {
+          return false;
+        }
+        // Read and start verifying the next chunk while the mapper works on
+        // this one
+        if (pos < end
+            && (hedgedReads == null || !hedgedReads.isRemote(pos))) {
+          pendingChunk = readChunk(fsIn);
+        }
+        numBytesRead += deliver(chunk, fsIn);
       }
-      // Switch out the buffers
-      if (value.getBuffer() != null) {
-        fsIn.releaseBuffer(value.getBuffer());
-      }
-      value.setByteBuffer(buf);
     }
-    // Fallback to normal byte[] based reads with a copy to the ByteBuffer
+    // Otherwise copy into a pooled buffer, direct if the stream can fill one
     else {
-      byte[] b = new byte[(int)(end-start)];
-      IOUtils.readFully(inputStream, b);
-      numBytesRead += b.length;
-      pos += b.length;
-      value.setByteBuffer(ByteBuffer.wrap(b));
+      long len = Math.min(end - pos, chunkSizer != null
+          ? chunkSizer.getSize(ChunkSizer.Mode.COPY) : COPY_CHUNK_SIZE);
+      releaseValue();
+      ByteBuffer buf = readCopy((int)Math.min(len, Integer.MAX_VALUE));
+      if (buf == null) {
+        return false;
+      }
+      if (chunkSizer != null) {
+        chunkSizer.endRead(ChunkSizer.Mode.COPY, len, buf.remaining());
+      }
+      numBytesRead += buf.remaining();
+      pos += buf.remaining();
+      value.setByteBuffer(buf);
+      valuePooled = true;
     }
     
     return numBytesRead > 0;
   }
 
+  /**
+   * Zero-copy read from pos, or null at EOF.
+   */
+  private ByteBuffer readZeroCopy(FSDataInputStream fsIn) throws IOException {
+    if (fsIn.getPos() != pos) {
+      // Positional reads don't move the stream
+      fsIn.seek(pos);
+    }
+    // Never ask for more than the rest of the split, so we don't read into
+    // the next one, or for more than the rest of the block, which is the
+    // most one zero-copy read can return.
+    long len = end - pos;
+    if (blockSize > 0) {
+      len = Math.min(len, blockSize - pos % blockSize);
+    }
+    long size = 0;
+    if (chunkSizer != null) {
+      // Guess the mode from the last read; blocks rarely change it
+      size = chunkSizer.getSize(zeroCopyMode);
+      len = Math.min(len, size);
+    }
+    readHints.beforeRead(len);
+    if (shortCircuitStats != null) {
+      shortCircuitStats.beforeRead();
+    }
+    long zeroCopyBytes = readStats.getTotalZeroCopyBytesRead();
+    long shortCircuitBytes = readStats.getTotalShortCircuitBytesRead();
+    ByteBuffer buf = fsIn.read(bufferPool,
+        (int)Math.min(len, Integer.MAX_VALUE), readOption);
+    // Update stats
+    InputStream wrappedStream = fsIn.getWrappedStream();
+    if (wrappedStream instanceof DFSInputStream) {
+      DFSInputStream dfsIn = (DFSInputStream)wrappedStream;
+      updateStats(dfsIn.getReadStatistics());
+    }
+    if (shortCircuitStats != null) {
+      shortCircuitStats.afterRead(buf != null,
+          readStats.getTotalZeroCopyBytesRead() - zeroCopyBytes,
+          readStats.getTotalShortCircuitBytesRead() - shortCircuitBytes);
+    }
+    if (buf == null) {
+      return null;
+    }
+    zeroCopyMode = readStats.getTotalZeroCopyBytesRead() > zeroCopyBytes
+        ? ChunkSizer.Mode.MMAP : ChunkSizer.Mode.COPY;
+    if (chunkSizer != null) {
+      chunkSizer.endRead(zeroCopyMode, size, buf.limit());
+    }
+    context.getCounter(READ_COUNTER.ZERO_COPY_TIER_READS).increment(1);
+    BufferLeases.acquired(buf);
+    leases++;
+    pos += buf.limit();
+    return buf;
+  }
+
+  /**
+   * Read up to len bytes from a stream without zero-copy reads, or return
+   * null at EOF. Streams that are ByteBufferReadable fill a pooled direct
+   * buffer; only other streams go through a (pooled) heap array.
+   */
+  private ByteBuffer readCopy(int len) throws IOException {
+    if (inputStream == fileIn && fileIn.getPos() != pos) {
+      fileIn.seek(pos);
+    }
+    if (byteBufferReadable) {
+      ByteBuffer buf = bufferPool.getBuffer(true, len);
+      buf.clear();
+      buf.limit(len);
+      try {
+        while (buf.hasRemaining()
+            && ((ByteBufferReadable)inputStream).read(buf) >= 0) {
+        }
+        buf.flip();
+        context.getCounter(READ_COUNTER.BYTE_BUFFER_TIER_READS).increment(1);
+        return pooledOrNull(buf);
+      } catch (UnsupportedOperationException e) {
+        // A wrapper whose inner stream can't read into a ByteBuffer
+        bufferPool.putBuffer(buf);
+        byteBufferReadable = false;
+      }
+    }
+    ByteBuffer buf = bufferPool.getBuffer(false, len);
+    buf.clear();
+    byte[] b = buf.array();
+    int off = buf.arrayOffset();
+    int n = 0;
+    while (n < len) {
+      int read = inputStream.read(b, off + n, len - n);
+      if (read < 0) {
+        break;
+      }
+      n += read;
+    }
+    buf.limit(n);
+    context.getCounter(READ_COUNTER.HEAP_TIER_READS).increment(1);
+    return pooledOrNull(buf);
+  }
+
+  private ByteBuffer pooledOrNull(ByteBuffer buf) {
+    if (!buf.hasRemaining()) {
+      bufferPool.putBuffer(buf);
+      return null;
+    }
+    return buf;
+  }
+
+  /**
+   * Zero-copy read from pos, with its verification started if it was
+   * mmapped, or null at EOF.
+   */
+  private ChecksumVerifier.Chunk readChunk(FSDataInputStream fsIn)
+      throws IOException {
+    long chunkPos = pos;
+    ByteBuffer buf = readZeroCopy(fsIn);
+    if (buf == null) {
+      return null;
+    }
+    // Copying reads were checksummed by the client
+    return zeroCopyMode == ChunkSizer.Mode.MMAP
+        ? checksums.submit(buf, chunkPos)
+        : ChecksumVerifier.Chunk.verified(buf, chunkPos);
+  }
+
+  /**
+   * Make chunk the current value once it is verified, or re-read it with
+   * checksums if it failed or could not be verified. Returns its length.
+   */
+  private int deliver(ChecksumVerifier.Chunk chunk, FSDataInputStream fsIn)
+      throws IOException {
+    releaseValue();
+    if (chunk.await()) {
+      if (chunk.isVerifiable()) {
+        context.getCounter(READ_COUNTER.VERIFIED_BYTES)
+            .increment(chunk.getVerifiedBytes());
+        context.getCounter(READ_COUNTER.UNVERIFIED_BYTES)
+            .increment(chunk.buf.remaining() - chunk.getVerifiedBytes());
+      }
+      value.setByteBuffer(chunk.buf);
+      valueLeased = true;
+      return chunk.buf.remaining();
+    }
+    if (chunk.isVerifiable()) {
+      context.getCounter(READ_COUNTER.CHECKSUM_FAILURES).increment(1);
+    }
+    context.getCounter(READ_COUNTER.CHECKSUM_REREADS).increment(1);
+    int len = chunk.buf.remaining();
+    releaseLeased(chunk.buf);
+    // The value is replaced on every read, so one buffer serves them all
+    if (rereadBuffer == null || rereadBuffer.length < len) {
+      rereadBuffer = new byte[len];
+    }
+    fsIn.readFully(chunk.pos, rereadBuffer, 0, len);
+    value.setByteBuffer(ByteBuffer.wrap(rereadBuffer, 0, len));
+    return len;
+  }
+
+  /**
+   * Give the current value's buffer back to the stream it was leased from,
+   * or to the pool it was taken from.
+   */
+  private void releaseValue() {
+    if (valueLeased) {
+      ByteBuffer buf = value.getBuffer();
+      valueLeased = false;
+      value.setByteBuffer(null);
+      releaseLeased(buf);
+    } else if (valuePooled) {
+      ByteBuffer buf = value.getBuffer();
+      valuePooled = false;
+      value.setByteBuffer(null);
+      bufferPool.putBuffer(buf);
+    }
+  }
+
+  private void releaseLeased(ByteBuffer buf) {
+    ((FSDataInputStream)inputStream).releaseBuffer(buf);
+    BufferLeases.released(buf);
+    releases++;
+  }
+
   private void updateStats(ReadStatistics newStats) {
     context.getCounter(READ_COUNTER.BYTES_READ).increment(
         newStats.getTotalBytesRead() - readStats.getTotalBytesRead());
@@ -212,9 +531,44 @@ public class ByteBufferRecordReader
   public synchronized void close() throws IOException {
     try {
       if (inputStream != null) {
-        inputStream.close();
-        inputStream = null;
+        // The last buffer must go back before the stream closes, or its
+        // mmap slot stays taken until GC
+        try {
+          if (pendingChunk != null) {
+            // Its buffer may still be in use by the verifier
+            pendingChunk.await();
+            releaseLeased(pendingChunk.buf);
+            pendingChunk = null;
+          }
+          releaseValue();
+        } finally {
+          inputStream.close();
+          inputStream = null;
+          if (hedgedReads != null) {
+            hedgedReads.close();
+          }
+        }
+      }
+      if (context != null) {
+        context.getCounter(READ_COUNTER.ZCR_BUFFERS_ACQUIRED)
+            .increment(leases);
+        context.getCounter(READ_COUNTER.ZCR_BUFFERS_RELEASED)
+            .increment(releases);
+        context.getCounter(READ_COUNTER.ZCR_BUFFERS_OUTSTANDING)
+            .increment(leases - releases);
+        leases = releases = 0;
+        if (shortCircuitStats != null) {
+          shortCircuitStats.publish(context);
+        }
+        if (chunkSizer != null) {
+          chunkSizer.publish(context);
+        }
+        if (hedgedReads != null) {
+          hedgedReads.publish(context);
+          hedgedReads = null;
+        }
       }
+      BufferLeases.logOutstanding(LOG);
     } finally {
       if (decompressor != null) {
         CodecPool.returnDecompressor(decompressor);
@@ -19,7 +19,6 @@
 package com.cloudera;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Properties;
@@ -39,7 +38,6 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -47,25 +45,42 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import com.cloudera.ByteBufferRecordReader.READ_COUNTER;
+import com.cloudera.ChunkSizer.CHUNK_COUNTER;
+import com.cloudera.ShortCircuitStats.CACHE_COUNTER;
 
 public class ByteCount {
 
+  /**
+   * Accumulates the histogram of the whole split and writes it once, in
+   * cleanup, rather than 256 records per buffer.
+   */
   public static class ByteCountMapper extends
       Mapper<LongWritable, ByteBufferWritable, ByteWritable, LongWritable> {
+    private TaskProfiler profiler;
+    private ScanKernel kernel;
+    private final long[] counts = new long[256];
+
+    @Override
+    protected void setup(Context context) throws IOException {
+      profiler = TaskProfiler.start(context.getConfiguration());
+      kernel = ScanKernels.get(context.getConfiguration());
+    }
+
     @Override
     public void map(LongWritable offset, ByteBufferWritable bufferWritable,
         Context context) throws IOException, InterruptedException {
-      ByteBuffer buf = bufferWritable.getBuffer();
-      final int bytesLength = buf.limit();
-      long[] counts = new long[256];
-      for (int i = 0; i < bytesLength; i++) {
-        int value = buf.get() & 0xFF;
-        counts[value]++;
+      kernel.histogram(bufferWritable.getBuffer(), counts);
+    }
+
+    @Override
+    protected void cleanup(Context context)
+        throws IOException, InterruptedException {
+      for (int i = 0; i < counts.length; i++) {
+        context.write(new ByteWritable((byte)i),
+            new LongWritable(counts[i]));
       }
-      for (int i=0; i<counts.length; i++) {
-        ByteWritable key = new ByteWritable((byte)i);
-        LongWritable value = new LongWritable(counts[i]);
-        context.write(key, value);
+      if (profiler != null) {
+        profiler.stop(context);
       }
     }
   }
@@ -87,13 +102,10 @@ public class ByteCount {
     System.out.println("\t\t" + c.getDisplayName() + " = " + c.getValue());
   }
 
-  public static void main(String[] args) throws Exception {
-    JobConf conf = new JobConf(new Configuration());
-
-    // Trim off the hadoop-specific args
-    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
-
-    // Pull in properties
+  /**
+   * Options shared by ByteCount and the tools that drive it.
+   */
+  public static Options createOptions() {
     Options options = new Options();
 
     Option property = OptionBuilder.withArgName("property=value")
@@ -106,12 +118,58 @@ public class ByteCount {
     Option skipChecksums = new Option("skipChecksums", "skip checksums");
     options.addOption(skipChecksums);
 
-    Option profile = new Option("profile", "profile tasks");
+    Option profile = OptionBuilder.withArgName("libasyncProfiler.so")
+        .hasArg()
+        .withDescription("profile map tasks with async-profiler and render "
+            + "a flamegraph; its jar must be passed with -libjars")
+        .create("profile");
     options.addOption(profile);
 
-    CommandLineParser parser = new BasicParser();
-    CommandLine line = parser.parse(options, remArgs);
+    Option combine = new Option("combine", "pack blocks into one split per "
+        + "host, preferring hosts that have them cached");
+    options.addOption(combine);
+
+    Option hedge = OptionBuilder.withArgName("percentile").hasOptionalArg()
+        .withDescription("hedge reads of blocks with no local replica once "
+            + "they are slower than this latency percentile (default 95)")
+        .create("hedge");
+    options.addOption(hedge);
+
+    Option verifyChecksums = OptionBuilder.withArgName("fraction")
+        .hasOptionalArg()
+        .withDescription("read with checksums skipped and verify mmapped "
+            + "chunks against the block meta files in parallel, or a "
+            + "sampled fraction of them")
+        .create("verifyChecksums");
+    options.addOption(verifyChecksums);
 
+    Option adaptive = new Option("adaptiveChunks", "size records by "
+        + "measured throughput, separately for mmapped and copied reads");
+    options.addOption(adaptive);
+
+    Option readahead = OptionBuilder.withArgName("bytes|auto").hasArg()
+        .withDescription("datanode readahead, or auto to match each read")
+        .create("readahead");
+    options.addOption(readahead);
+
+    Option dropBehind = new Option("dropBehind", "have datanodes drop the "
+        + "pages they send from their cache, for scan-once input");
+    options.addOption(dropBehind);
+
+    Option verify = OptionBuilder.withArgName("sidecar|cycle")
+        .hasArg()
+        .withDescription("check the result against the input's expected "
+            + "histogram and fail on mismatch")
+        .create("verify");
+    options.addOption(verify);
+
+    return options;
+  }
+
+  /**
+   * Apply the options from {@link #createOptions()} to conf.
+   */
+  public static void applyOptions(CommandLine line, Configuration conf) {
     Properties properties = line.getOptionProperties("D");
     for (Entry<Object, Object> prop: properties.entrySet()) {
       conf.set(prop.getKey().toString(), prop.getValue().toString());
@@ -124,27 +182,63 @@ public class ByteCount {
       System.out.println("Skipping checksums");
     }
 
+    if (line.hasOption("combine")) {
+      conf.setBoolean("bytecount.combine", true);
+      System.out.println("Combining blocks into per-host splits");
+    }
+
+    if (line.hasOption("hedge")) {
+      conf.setBoolean(HedgedReads.ENABLED, true);
+      if (line.getOptionValue("hedge") != null) {
+        conf.set(HedgedReads.PERCENTILE, line.getOptionValue("hedge"));
+      }
+      System.out.println("Hedging remote reads after the p"
+          + conf.get(HedgedReads.PERCENTILE, "95") + " latency");
+    }
+
+    if (line.hasOption("verifyChecksums")) {
+      conf.setBoolean(ChecksumVerifier.VERIFY, true);
+      if (line.getOptionValue("verifyChecksums") != null) {
+        conf.set(ChecksumVerifier.FRACTION,
+            line.getOptionValue("verifyChecksums"));
+      }
+      System.out.println("Verifying checksums of mmapped reads, fraction "
+          + conf.get(ChecksumVerifier.FRACTION, "1"));
+    }
+
+    if (line.hasOption("adaptiveChunks")) {
+      conf.setBoolean(ChunkSizer.ADAPTIVE, true);
+      System.out.println("Sizing records adaptively");
+    }
+
+    if (line.hasOption("readahead")) {
+      conf.set(ReadHints.READAHEAD, line.getOptionValue("readahead"));
+      System.out.println("Readahead " + line.getOptionValue("readahead"));
+    }
+
+    if (line.hasOption("dropBehind")) {
+      conf.setBoolean(ReadHints.DROP_BEHIND, true);
+      System.out.println("Dropping input from the datanode page cache");
+    }
+
     if (line.hasOption("profile")) {
-      conf.setBoolean("mapred.task.profile", true);
-      conf.set("mapred.task.profile.params",
-          "-agentlib:hprof=cpu=samples,depth=100,interval=1ms,lineno=y,thread=y,file=%s");
-      conf.set(MRJobConfig.NUM_MAP_PROFILES, "0");
-      conf.set("mapred.task.profile.maps", "1");
+      conf.set(TaskProfiler.LIB, line.getOptionValue("profile"));
       System.out.println("Profiling map tasks");
     }
+  }
 
-    // Get the positional arguments out
-    remArgs = line.getArgs();
-    if (remArgs.length != 2) {
-      System.err.println("Usage: ByteCount <inputBase> <outputBase>");
-      System.exit(1);
+  public static Job createJob(Configuration conf, String inputBase,
+      String outputBase) throws IOException {
+    if (TaskProfiler.isEnabled(conf)) {
+      TaskProfiler.setOutputDir(conf, new Path(outputBase));
     }
-    String inputBase = remArgs[0];
-    String outputBase = remArgs[1];
-
     Job job = Job.getInstance(conf);
 
-    job.setInputFormatClass(ByteBufferInputFormat.class);
+    if (conf.getBoolean("bytecount.combine", false)) {
+      job.setInputFormatClass(CombineByteBufferInputFormat.class);
+    } else {
+      job.setInputFormatClass(ByteBufferInputFormat.class);
+    }
 
     job.setMapOutputKeyClass(ByteWritable.class);
     job.setMapOutputValueClass(LongWritable.class);
@@ -160,15 +254,128 @@ public class ByteCount {
     FileOutputFormat.setOutputPath(job, new Path(outputBase));
 
     job.setJarByClass(ByteCount.class);
+    return job;
+  }
 
-    boolean success = job.waitForCompletion(true);
-
-    Counters counters = job.getCounters();
+  public static void printReadCounters(Counters counters) {
     System.out.println("\tRead counters");
     printCounter(counters, READ_COUNTER.BYTES_READ);
     printCounter(counters, READ_COUNTER.LOCAL_BYTES_READ);
     printCounter(counters, READ_COUNTER.SCR_BYTES_READ);
     printCounter(counters, READ_COUNTER.ZCR_BYTES_READ);
+    printCounter(counters, READ_COUNTER.ZCR_BUFFERS_ACQUIRED);
+    printCounter(counters, READ_COUNTER.ZCR_BUFFERS_RELEASED);
+    printCounter(counters, READ_COUNTER.ZCR_BUFFERS_OUTSTANDING);
+    printCounter(counters, READ_COUNTER.HEDGED_READS);
+    printCounter(counters, READ_COUNTER.HEDGED_READ_WINS);
+    printCounter(counters, READ_COUNTER.HEDGED_READ_WASTED);
+    printCounter(counters, READ_COUNTER.VERIFIED_BYTES);
+    printCounter(counters, READ_COUNTER.CHECKSUM_FAILURES);
+    printCounter(counters, READ_COUNTER.CHECKSUM_REREADS);
+    printCounter(counters, READ_COUNTER.ZERO_COPY_TIER_READS);
+    printCounter(counters, READ_COUNTER.BYTE_BUFFER_TIER_READS);
+    printCounter(counters, READ_COUNTER.HEAP_TIER_READS);
+    long verified = counters.findCounter(READ_COUNTER.VERIFIED_BYTES)
+        .getValue();
+    long unverified = counters.findCounter(READ_COUNTER.UNVERIFIED_BYTES)
+        .getValue();
+    if (verified + unverified > 0) {
+      System.out.println(String.format(
+          "\t\tChecksum coverage = %.1f%% of %d mmapped bytes",
+          100.0 * verified / (verified + unverified), verified + unverified));
+    }
+  }
+
+  /**
+   * Print the short-circuit cache counters as a table, with the share of
+   * mmap and replica lookups that hit.
+   */
+  public static void printCacheCounters(Counters counters) {
+    long created = counters.findCounter(CACHE_COUNTER.MMAP_CREATED).getValue();
+    long reused = counters.findCounter(CACHE_COUNTER.MMAP_REUSED).getValue();
+    long evicted = counters.findCounter(CACHE_COUNTER.MMAP_EVICTED).getValue();
+    long failed = counters.findCounter(CACHE_COUNTER.MMAP_FAILED).getValue();
+    long hits =
+        counters.findCounter(CACHE_COUNTER.REPLICA_CACHE_HITS).getValue();
+    long misses =
+        counters.findCounter(CACHE_COUNTER.REPLICA_CACHE_MISSES).getValue();
+    System.out.println("\tShort-circuit cache");
+    System.out.println(String.format("\t\t%-10s %10s %10s %10s %10s %8s",
+        "", "created", "reused", "evicted", "failed", "hit %"));
+    System.out.println(String.format("\t\t%-10s %10d %10d %10d %10d %8s",
+        "mmaps", created, reused, evicted, failed,
+        percent(reused, created + reused + failed)));
+    System.out.println(String.format("\t\t%-10s %10s %10s %10s %10s %8s",
+        "", "hits", "misses", "", "", "hit %"));
+    System.out.println(String.format("\t\t%-10s %10d %10d %10s %10s %8s",
+        "replicas", hits, misses, "", "", percent(hits, hits + misses)));
+  }
+
+  /**
+   * Print the reads and mean record size of each read mode, when records
+   * were sized adaptively.
+   */
+  public static void printChunkCounters(Counters counters) {
+    System.out.println("\tAdaptive chunks");
+    System.out.println(String.format("\t\t%-6s %10s %14s %12s", "mode",
+        "reads", "bytes", "mean KB"));
+    CHUNK_COUNTER[] chunkCounters = CHUNK_COUNTER.values();
+    for (ChunkSizer.Mode mode : ChunkSizer.Mode.values()) {
+      long reads = counters.findCounter(
+          chunkCounters[mode.ordinal() * 2]).getValue();
+      long bytes = counters.findCounter(
+          chunkCounters[mode.ordinal() * 2 + 1]).getValue();
+      System.out.println(String.format("\t\t%-6s %10d %14d %12s",
+          mode.toString().toLowerCase(), reads, bytes,
+          reads == 0 ? "-" : Long.toString(bytes / reads / 1024)));
+    }
+  }
+
+  private static String percent(long part, long total) {
+    return total == 0 ? "-" : String.format("%.1f", 100.0 * part / total);
+  }
+
+  public static void main(String[] args) throws Exception {
+    JobConf conf = new JobConf(new Configuration());
+
+    // Trim off the hadoop-specific args
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+    // Pull in properties
+    CommandLineParser parser = new BasicParser();
+    CommandLine line = parser.parse(createOptions(), remArgs);
+    applyOptions(line, conf);
+
+    // Get the positional arguments out
+    remArgs = line.getArgs();
+    if (remArgs.length != 2) {
+      System.err.println("Usage: ByteCount <inputBase> <outputBase>");
+      System.exit(1);
+    }
+    String inputBase = remArgs[0];
+    String outputBase = remArgs[1];
+
+    Job job = createJob(conf, inputBase, outputBase);
+
+    boolean success = job.waitForCompletion(true);
+
+    printReadCounters(job.getCounters());
+    printCacheCounters(job.getCounters());
+    if (conf.getBoolean(ChunkSizer.ADAPTIVE, false)) {
+      printChunkCounters(job.getCounters());
+    }
+
+    if (TaskProfiler.isEnabled(conf)) {
+      Path svg = TaskProfiler.render(job.getConfiguration(),
+          "ByteCount " + inputBase);
+      System.out.println(svg == null ? "No task profiles were written"
+          : "Wrote flamegraph to " + svg);
+    }
+
+    if (success && line.hasOption("verify")) {
+      success = ByteCountVerifier.verify(conf, new Path(inputBase),
+          new Path(outputBase), line.getOptionValue("verify"));
+    }
 
     System.exit(success ? 0 : 1);
   }
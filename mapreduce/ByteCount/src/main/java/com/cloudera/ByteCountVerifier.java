@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * Checks a ByteCount result against the histogram its input should have.
+ * <p>
+ * Two kinds of reference data are supported, both produced by
+ * GenerateRandom's raw byte generator:
+ * <ul>
+ * <li>"sidecar": the sum of the "_histogram-*" files the generator writes
+ * next to each output file.</li>
+ * <li>"cycle": computed from the input file lengths, for files written with
+ * the cycle distribution, where each file holds 0, 1, ..., 255, 0, ...</li>
+ * </ul>
+ */
+public class ByteCountVerifier {
+
+  public static final String HISTOGRAM_PREFIX = "_histogram-";
+
+  /** The same filter FileInputFormat applies to its input. */
+  private static final PathFilter HIDDEN_FILTER = new PathFilter() {
+    @Override
+    public boolean accept(Path p) {
+      String name = p.getName();
+      return !name.startsWith("_") && !name.startsWith(".");
+    }
+  };
+
+  private static final PathFilter HISTOGRAM_FILTER = new PathFilter() {
+    @Override
+    public boolean accept(Path p) {
+      return p.getName().startsWith(HISTOGRAM_PREFIX);
+    }
+  };
+
+  private ByteCountVerifier() {
+  }
+
+  /**
+   * Compare the job output with the expected histogram of its input.
+   *
+   * @return true if every byte's count matches.
+   */
+  public static boolean verify(Configuration conf, Path input, Path output,
+      String mode) throws IOException {
+    long[] expected;
+    if (mode.equals("sidecar")) {
+      expected = sidecarHistogram(conf, input);
+    } else if (mode.equals("cycle")) {
+      expected = cycleHistogram(conf, input);
+    } else {
+      throw new IllegalArgumentException("Unknown verify mode " + mode);
+    }
+    long[] actual = readOutput(conf, output);
+
+    int mismatches = 0;
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] != actual[i]) {
+        System.out.println("\t\tbyte " + i + ": expected " + expected[i]
+            + ", got " + actual[i]);
+        mismatches++;
+      }
+    }
+    if (mismatches == 0) {
+      System.out.println("\tVerified all 256 byte counts against " + mode
+          + " reference");
+    } else {
+      System.out.println("\tVerification FAILED: " + mismatches
+          + " of 256 byte counts differ");
+    }
+    return mismatches == 0;
+  }
+
+  private static long[] sidecarHistogram(Configuration conf, Path input)
+      throws IOException {
+    FileSystem fs = input.getFileSystem(conf);
+    FileStatus[] sidecars = fs.listStatus(input, HISTOGRAM_FILTER);
+    if (sidecars.length == 0) {
+      throw new IOException("No " + HISTOGRAM_PREFIX + "* files in " + input);
+    }
+    long[] histogram = new long[256];
+    for (FileStatus stat : sidecars) {
+      readHistogram(fs, stat.getPath(), histogram);
+    }
+    return histogram;
+  }
+
+  private static long[] cycleHistogram(Configuration conf, Path input)
+      throws IOException {
+    FileSystem fs = input.getFileSystem(conf);
+    FileStatus inputStat = fs.getFileStatus(input);
+    FileStatus[] files = inputStat.isDirectory() ?
+        fs.listStatus(input, HIDDEN_FILTER) : new FileStatus[] { inputStat };
+    long[] histogram = new long[256];
+    for (FileStatus stat : files) {
+      long len = stat.getLen();
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] += len / 256 + (i < len % 256 ? 1 : 0);
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Sum the reducer output, whose keys are ByteWritable's signed decimal.
+   */
+  private static long[] readOutput(Configuration conf, Path output)
+      throws IOException {
+    FileSystem fs = output.getFileSystem(conf);
+    long[] histogram = new long[256];
+    for (FileStatus stat : fs.listStatus(output, HIDDEN_FILTER)) {
+      readHistogram(fs, stat.getPath(), histogram);
+    }
+    return histogram;
+  }
+
+  private static void readHistogram(FileSystem fs, Path path,
+      long[] histogram) throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length != 2) {
+          throw new IOException("Malformed line in " + path + ": " + line);
+        }
+        histogram[Integer.parseInt(fields[0]) & 0xFF] +=
+            Long.parseLong(fields[1]);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates the byte histogram of any number of buffers, so a task writes
+ * its counts once instead of once per record.
+ * <p>
+ * Direct buffers are read a long at a time and heap buffers straight from
+ * their array, and the counts are spread over four interleaved int tables,
+ * so consecutive equal bytes don't serialize on one counter. The tables are
+ * folded into the long counts every FLUSH_BYTES so they cannot overflow.
+ * This is the histogram of the "bulk" {@link ScanKernel}.
+ */
+public class ByteHistogram {
+  private static final int FLUSH_BYTES = 1 << 28;
+
+  private final long[] counts = new long[256];
+  private final int[] tables = new int[4 * 256];
+
+  /**
+   * Add the bytes between the buffer's position and limit, without changing
+   * either.
+   */
+  public void add(ByteBuffer buf) {
+    int limit = buf.limit();
+    for (int pos = buf.position(); pos < limit; pos += FLUSH_BYTES) {
+      int end = (int)Math.min(limit, (long)pos + FLUSH_BYTES);
+      if (buf.hasArray()) {
+        addArray(buf.array(), buf.arrayOffset() + pos,
+            buf.arrayOffset() + end);
+      } else {
+        addDirect(buf, pos, end);
+      }
+      flush();
+    }
+  }
+
+  private void addArray(byte[] b, int start, int end) {
+    final int[] t = tables;
+    int i = start;
+    for (; i + 4 <= end; i += 4) {
+      t[b[i] & 0xFF]++;
+      t[256 + (b[i + 1] & 0xFF)]++;
+      t[512 + (b[i + 2] & 0xFF)]++;
+      t[768 + (b[i + 3] & 0xFF)]++;
+    }
+    for (; i < end; i++) {
+      t[b[i] & 0xFF]++;
+    }
+  }
+
+  private void addDirect(ByteBuffer buf, int start, int end) {
+    final int[] t = tables;
+    int i = start;
+    for (; i + 8 <= end; i += 8) {
+      long w = buf.getLong(i);
+      t[(int)w & 0xFF]++;
+      t[256 + ((int)(w >>> 8) & 0xFF)]++;
+      t[512 + ((int)(w >>> 16) & 0xFF)]++;
+      t[768 + ((int)(w >>> 24) & 0xFF)]++;
+      t[(int)(w >>> 32) & 0xFF]++;
+      t[256 + ((int)(w >>> 40) & 0xFF)]++;
+      t[512 + ((int)(w >>> 48) & 0xFF)]++;
+      t[768 + (int)(w >>> 56)]++;
+    }
+    for (; i < end; i++) {
+      t[buf.get(i) & 0xFF]++;
+    }
+  }
+
+  private void flush() {
+    for (int i = 0; i < 256; i++) {
+      // At most FLUSH_BYTES in total, so the int sum can't overflow
+      counts[i] += tables[i] + tables[256 + i] + tables[512 + i]
+          + tables[768 + i];
+    }
+    Arrays.fill(tables, 0);
+  }
+
+  /**
+   * Zero the counts, to start a new histogram with the same tables.
+   */
+  public void clear() {
+    Arrays.fill(counts, 0);
+  }
+
+  /**
+   * The count of each byte value, indexed by its unsigned value.
+   */
+  public long[] getCounts() {
+    return counts;
+  }
+}
@@ -0,0 +1,457 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Verifies mmapped chunks, read with checksums skipped, against the CRCs
+ * in their blocks' local meta files, so zero-copy reads don't have to give
+ * up integrity.
+ * <p>
+ * Each chunk is cut into slices that are verified in parallel on a small
+ * pool shared by the JVM, using DataChecksum, which runs the native
+ * SSE4.2 CRC32C when libhadoop is loaded. {@link #submit} returns at once,
+ * so the reader can verify the next chunk while the mapper works on the
+ * last one, and {@link Chunk#await} says whether it passed.
+ * <p>
+ * Meta files are found under dfs.datanode.data.dir, so the task must be
+ * able to read the data directories. The split's blocks are looked up, and
+ * their meta files found, once when the verifier is created, so reading a
+ * chunk costs no namenode call or directory scan. A chunk that can't be
+ * verified, for
+ * want of a meta file or because it doesn't start on a checksum boundary,
+ * is treated like one that failed, and re-read with checksums.
+ * <p>
+ * With {@link #FRACTION} below 1, only that fraction of each chunk's
+ * {@link #SAMPLE_SIZE} slices is verified, plus the first and last slice
+ * of every block. The sample is drawn from a seed per split, so a rerun
+ * checks the same bytes. Corruption of a cached replica is then caught
+ * with that probability per slice, at a fraction of the cost.
+ */
+public class ChecksumVerifier {
+  private static final Log LOG = LogFactory.getLog(ChecksumVerifier.class);
+
+  /** Verify mmapped reads against block meta files. */
+  public static final String VERIFY = "bytecount.verifyChecksums";
+  /** Threads verifying checksums, shared by all readers in the JVM. */
+  public static final String THREADS = "bytecount.verify.threads";
+  /** Fraction of each chunk to verify, 1 (the default) for all of it. */
+  public static final String FRACTION = "bytecount.verify.fraction";
+  /** Bytes per sample when verifying a fraction. */
+  public static final String SAMPLE_SIZE = "bytecount.verify.sample.size";
+  /** Seed for sampling, combined with the file and split start. */
+  public static final String SEED = "bytecount.verify.seed";
+
+  /** Smallest slice worth its own task. */
+  private static final int MIN_SLICE = 1024 * 1024;
+
+  private static ExecutorService pool;
+  private static int threads;
+  private static final Map<Long, File> metaFiles = new HashMap<Long, File>();
+  private static boolean warned;
+
+  private final String path;
+  private final List<File> dataDirs;
+  private final List<LocatedBlock> blocks;
+  private int blockIndex;
+  private final double fraction;
+  private final int sampleSize;
+  private final Random random;
+
+  /**
+   * A chunk being verified.
+   */
+  static class Chunk {
+    final ByteBuffer buf;
+    final long pos;
+    private final List<Future<Void>> slices;
+    private final long verifiedBytes;
+    private final boolean trusted;
+
+    private Chunk(ByteBuffer buf, long pos, List<Future<Void>> slices,
+        long verifiedBytes, boolean trusted) {
+      this.buf = buf;
+      this.pos = pos;
+      this.slices = slices;
+      this.verifiedBytes = verifiedBytes;
+      this.trusted = trusted;
+    }
+
+    Chunk(ByteBuffer buf, long pos, List<Future<Void>> slices,
+        long verifiedBytes) {
+      this(buf, pos, slices, verifiedBytes, false);
+    }
+
+    /**
+     * A chunk that can't be verified, and must be re-read.
+     */
+    static Chunk unverifiable(ByteBuffer buf, long pos) {
+      return new Chunk(buf, pos, null, 0, false);
+    }
+
+    /**
+     * A chunk whose checksums were already checked by the client.
+     */
+    static Chunk verified(ByteBuffer buf, long pos) {
+      return new Chunk(buf, pos, null, 0, true);
+    }
+
+    /**
+     * Bytes being checked; less than the chunk when sampling.
+     */
+    long getVerifiedBytes() {
+      return verifiedBytes;
+    }
+
+    /**
+     * Whether this chunk is being checked against its meta file.
+     */
+    boolean isVerifiable() {
+      return slices != null;
+    }
+
+    /**
+     * Wait for every slice, and return whether they all passed. Once this
+     * returns the buffer is no longer in use and may be released.
+     */
+    boolean await() throws IOException {
+      if (slices == null) {
+        return trusted;
+      }
+      boolean ok = true;
+      for (Future<Void> slice : slices) {
+        try {
+          slice.get();
+        } catch (ExecutionException e) {
+          if (!(e.getCause() instanceof ChecksumException)) {
+            throw new IOException(e.getCause());
+          }
+          LOG.warn("Checksum error", e.getCause());
+          ok = false;
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      return ok;
+    }
+  }
+
+  ChecksumVerifier(Configuration conf, DFSClient client, Path file,
+      long splitStart, long splitLength) throws IOException {
+    this.path = file.toUri().getPath();
+    this.dataDirs = dataDirs(conf);
+    this.blocks = client.getLocatedBlocks(path, splitStart,
+        Math.max(1, splitLength)).getLocatedBlocks();
+    this.fraction = conf.getFloat(FRACTION, 1);
+    this.sampleSize = conf.getInt(SAMPLE_SIZE, 1024 * 1024);
+    this.random = new Random(conf.getLong(SEED, 0)
+        ^ (path.hashCode() * 31L + splitStart));
+    synchronized (ChecksumVerifier.class) {
+      if (pool == null) {
+        threads = conf.getInt(THREADS, 2);
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "checksum-verifier");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
+    }
+    resolveMetaFiles();
+  }
+
+  private static List<File> dataDirs(Configuration conf) {
+    List<File> dirs = new ArrayList<File>();
+    for (String dir : conf.getTrimmedStrings("dfs.datanode.data.dir")) {
+      // Strip storage type prefixes like [DISK]
+      dir = dir.replaceFirst("^\\[\\w+\\]", "");
+      try {
+        URI uri = new URI(dir);
+        dirs.add(uri.getScheme() == null ? new File(dir)
+            : new File(uri.getPath()));
+      } catch (URISyntaxException e) {
+        dirs.add(new File(dir));
+      }
+    }
+    return dirs;
+  }
+
+  /**
+   * Start verifying buf, which holds the file's bytes from pos and does not
+   * cross a block boundary.
+   */
+  Chunk submit(final ByteBuffer buf, final long pos) throws IOException {
+    LocatedBlock block = blockAt(pos);
+    if (block == null) {
+      return Chunk.unverifiable(buf, pos);
+    }
+    long blockId = block.getBlock().getBlockId();
+    File meta;
+    synchronized (metaFiles) {
+      meta = metaFiles.get(blockId);
+    }
+    if (meta == null) {
+      warnOnce("No readable meta file for " + block.getBlock()
+          + " under " + dataDirs + "; re-reading with checksums");
+      return Chunk.unverifiable(buf, pos);
+    }
+
+    final long offset = pos - block.getStartOffset();
+    final DataChecksum header;
+    final ByteBuffer sums;
+    RandomAccessFile in;
+    try {
+      in = new RandomAccessFile(meta, "r");
+    } catch (FileNotFoundException e) {
+      // The replica was moved or deleted since we found it
+      synchronized (metaFiles) {
+        metaFiles.remove(blockId);
+      }
+      return Chunk.unverifiable(buf, pos);
+    }
+    try {
+      FileChannel channel = in.getChannel();
+      // Meta file version (2 bytes), then the checksum header
+      byte[] b = new byte[2 + DataChecksum.HEADER_LEN];
+      channel.read(ByteBuffer.wrap(b), 0);
+      header = DataChecksum.newDataChecksum(b, 2);
+      int bpc = header.getBytesPerChecksum();
+      if (header.getChecksumSize() == 0 || offset % bpc != 0) {
+        return Chunk.unverifiable(buf, pos);
+      }
+      int numSums = (buf.remaining() + bpc - 1) / bpc;
+      // Direct, like the mmapped data, as the native CRC code needs both
+      sums = ByteBuffer.allocateDirect(numSums * header.getChecksumSize());
+      long sumsOffset = 2 + DataChecksum.HEADER_LEN
+          + offset / bpc * header.getChecksumSize();
+      while (sums.hasRemaining()
+          && channel.read(sums, sumsOffset + sums.position()) >= 0) {
+      }
+      if (sums.hasRemaining()) {
+        // Meta file shorter than the data: the block is still being written
+        return Chunk.unverifiable(buf, pos);
+      }
+      sums.flip();
+    } finally {
+      in.close();
+    }
+
+    // Cut into slices of whole checksum chunks: one or more per thread, or
+    // of the sample size when sampling
+    final int bpc = header.getBytesPerChecksum();
+    final int sumSize = header.getChecksumSize();
+    int sliceBytes = fraction < 1 ? sampleSize
+        : Math.max(MIN_SLICE, buf.remaining() / threads);
+    sliceBytes = (sliceBytes + bpc - 1) / bpc * bpc;
+    long blockEnd = block.getStartOffset() + block.getBlockSize();
+    List<Future<Void>> slices = new ArrayList<Future<Void>>();
+    long verifiedBytes = 0;
+    for (int start = 0; start < buf.remaining(); start += sliceBytes) {
+      final int sliceStart = start;
+      final int sliceEnd = Math.min(buf.remaining(), start + sliceBytes);
+      // Draw for every slice, so the same split always samples the same ones
+      boolean sampled = random.nextDouble() < fraction;
+      if (!sampled && offset + sliceStart > 0 && pos + sliceEnd < blockEnd) {
+        continue;
+      }
+      verifiedBytes += sliceEnd - sliceStart;
+      slices.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws ChecksumException {
+          ByteBuffer data = buf.duplicate();
+          data.position(buf.position() + sliceStart);
+          data.limit(buf.position() + sliceEnd);
+          ByteBuffer slice = sums.duplicate();
+          slice.position(sliceStart / bpc * sumSize);
+          slice.limit((sliceEnd + bpc - 1) / bpc * sumSize);
+          // DataChecksum keeps state, so one per slice
+          DataChecksum checksum = DataChecksum.newDataChecksum(
+              header.getChecksumType(), bpc);
+          checksum.verifyChunkedSums(data, slice, path, pos + sliceStart);
+          return null;
+        }
+      }));
+    }
+    return new Chunk(buf, pos, slices, verifiedBytes);
+  }
+
+  /**
+   * Whether any of the split's blocks has a meta file to verify against.
+   */
+  boolean canVerify() {
+    synchronized (metaFiles) {
+      for (LocatedBlock block : blocks) {
+        if (metaFiles.containsKey(block.getBlock().getBlockId())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The split's block that holds pos, or null.
+   */
+  private LocatedBlock blockAt(long pos) {
+    // Chunks are read in order, so start from the last block
+    for (int i = 0; i < blocks.size(); i++) {
+      int index = (blockIndex + i) % blocks.size();
+      LocatedBlock block = blocks.get(index);
+      if (pos >= block.getStartOffset()
+          && pos < block.getStartOffset() + block.getBlockSize()) {
+        blockIndex = index;
+        return block;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the meta files of the split's blocks that aren't known yet. Each
+   * is first looked for where the datanode's layout puts it by block ID,
+   * and only those not found there by scanning the finalized directories
+   * of their block pools, which stops once all are found. Nothing is held
+   * locked while looking, so readers don't wait on each other's scans.
+   */
+  private void resolveMetaFiles() {
+    // blk_<id>_ prefix of each missing meta file, by block ID
+    Map<Long, String> missing = new HashMap<Long, String>();
+    Set<String> blockPools = new HashSet<String>();
+    synchronized (metaFiles) {
+      for (LocatedBlock block : blocks) {
+        long id = block.getBlock().getBlockId();
+        if (!metaFiles.containsKey(id)) {
+          missing.put(id, "blk_" + id + "_");
+          blockPools.add(block.getBlock().getBlockPoolId());
+        }
+      }
+    }
+    Map<Long, File> found = new HashMap<Long, File>();
+    for (LocatedBlock block : blocks) {
+      long id = block.getBlock().getBlockId();
+      if (!missing.containsKey(id)) {
+        continue;
+      }
+      String name = missing.get(id)
+          + block.getBlock().getGenerationStamp() + ".meta";
+      for (File dir : dataDirs) {
+        File finalized = finalizedDir(dir, block.getBlock().getBlockPoolId());
+        for (File candidate : new File[] {
+            // Flat, as in older datanodes' first 64 blocks
+            new File(finalized, name),
+            // Block ID based layouts, 256x256 (2.6) and 32x32 (2.8) dirs
+            new File(finalized, "subdir" + ((id >> 16) & 0xFF)
+                + "/subdir" + ((id >> 8) & 0xFF) + "/" + name),
+            new File(finalized, "subdir" + ((id >> 16) & 0x1F)
+                + "/subdir" + ((id >> 8) & 0x1F) + "/" + name) }) {
+          if (candidate.isFile()) {
+            found.put(id, candidate);
+            break;
+          }
+        }
+        if (found.containsKey(id)) {
+          missing.remove(id);
+          break;
+        }
+      }
+    }
+    // Older datanodes fill subdirs as blocks arrive, so the rest need a scan
+    for (File dir : dataDirs) {
+      for (String blockPool : blockPools) {
+        if (!missing.isEmpty()) {
+          scan(finalizedDir(dir, blockPool), missing, found);
+        }
+      }
+    }
+    synchronized (metaFiles) {
+      metaFiles.putAll(found);
+    }
+  }
+
+  private static File finalizedDir(File dataDir, String blockPool) {
+    return new File(dataDir, "current/" + blockPool + "/current/finalized");
+  }
+
+  private static void scan(File dir, Map<Long, String> missing,
+      Map<Long, File> found) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (missing.isEmpty()) {
+        return;
+      }
+      String name = child.getName();
+      if (child.isDirectory()) {
+        scan(child, missing, found);
+      } else if (name.startsWith("blk_") && name.endsWith(".meta")) {
+        // blk_<id>_<genstamp>.meta
+        int end = name.indexOf('_', "blk_".length());
+        try {
+          long id = Long.parseLong(name.substring("blk_".length(), end));
+          if (missing.remove(id) != null) {
+            found.put(id, child);
+          }
+        } catch (RuntimeException e) {
+          // Not a block meta file
+        }
+      }
+    }
+  }
+
+  private static synchronized void warnOnce(String message) {
+    if (!warned) {
+      LOG.warn(message);
+      warned = true;
+    }
+  }
+}
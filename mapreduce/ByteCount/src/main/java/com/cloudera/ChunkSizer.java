@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Picks the record size for {@link ByteBufferRecordReader}, separately for
+ * each way a chunk can be read, by hill climbing on throughput.
+ * <p>
+ * Mmapped reads of cached blocks want big chunks, since every call has a
+ * fixed cost and the bytes are already in memory, while copying reads over
+ * TCP want small ones, for latency and memory. So each {@link Mode} starts
+ * at {@link #MIN_SIZE} and, every {@link #READS_PER_STEP} reads, doubles or
+ * halves its size: in the same direction while throughput improves, and
+ * back the other way once it drops, which keeps it near the peak within
+ * [{@link #MIN_SIZE}, {@link #MAX_SIZE}]. Copying and positional reads fill
+ * a buffer of their size, so they stop at the much lower
+ * {@link #COPY_MAX_SIZE}.
+ * <p>
+ * A record's throughput is its bytes over the time from the call that read
+ * it to the next call, so it includes the mapper's work on it, and mmap
+ * page faults are counted where they happen. The sizes are shared by all
+ * readers in the JVM, so a task of many small splits keeps what the first
+ * ones learned.
+ */
+public class ChunkSizer {
+  private static final Log LOG = LogFactory.getLog(ChunkSizer.class);
+
+  /** Size records adaptively instead of reading a block per record. */
+  public static final String ADAPTIVE = "bytecount.chunk.adaptive";
+  /** Smallest record, in bytes, and the starting size. */
+  public static final String MIN_SIZE = "bytecount.chunk.min";
+  /** Largest record, in bytes. */
+  public static final String MAX_SIZE = "bytecount.chunk.max";
+  /** Largest copied or positional read, in bytes. */
+  public static final String COPY_MAX_SIZE = "bytecount.chunk.copy.max";
+
+  static final int READS_PER_STEP = 4;
+
+  /**
+   * How a chunk was read.
+   */
+  public static enum Mode {
+    /** Zero-copy, from an mmap of a cached or local block. */
+    MMAP,
+    /** Copied into a pool buffer, because the block could not be mmapped. */
+    COPY,
+    /** Positional read, from {@link HedgedReads}. */
+    PREAD
+  }
+
+  /**
+   * Reads and bytes per mode, so the mean chosen size is bytes / reads.
+   */
+  public static enum CHUNK_COUNTER {
+    MMAP_READS,
+    MMAP_BYTES,
+    COPY_READS,
+    COPY_BYTES,
+    PREAD_READS,
+    PREAD_BYTES
+  };
+
+  /**
+   * Climbing state of one mode.
+   */
+  private static class Climb {
+    long size;
+    int direction = 1;
+    int reads;
+    long bytes;
+    long nanos;
+    double lastThroughput;
+  }
+
+  private static final Climb[] climbs = new Climb[Mode.values().length];
+
+  private final long minSize;
+  private final long maxSize;
+  private final long copyMaxSize;
+  private final long[] counts = new long[CHUNK_COUNTER.values().length];
+  private Mode pendingMode;
+  private long pendingBytes;
+  private long pendingStart;
+
+  ChunkSizer(Configuration conf) {
+    this.minSize = conf.getLong(MIN_SIZE, 1024 * 1024);
+    this.maxSize = Math.max(minSize,
+        conf.getLong(MAX_SIZE, 256 * 1024 * 1024));
+    this.copyMaxSize = Math.max(minSize, Math.min(maxSize,
+        conf.getLong(COPY_MAX_SIZE, 8 * 1024 * 1024)));
+    synchronized (climbs) {
+      for (int i = 0; i < climbs.length; i++) {
+        if (climbs[i] == null) {
+          climbs[i] = new Climb();
+          climbs[i].size = minSize;
+        }
+      }
+    }
+  }
+
+  /**
+   * Forget the sizes learned by earlier readers, for tests.
+   */
+  static void reset() {
+    synchronized (climbs) {
+      Arrays.fill(climbs, null);
+    }
+  }
+
+  /**
+   * Returns null unless adaptive sizing is on.
+   */
+  static ChunkSizer create(Configuration conf) {
+    return conf.getBoolean(ADAPTIVE, false) ? new ChunkSizer(conf) : null;
+  }
+
+  /**
+   * The size to read next in the given mode.
+   */
+  long getSize(Mode mode) {
+    synchronized (climbs) {
+      return Math.min(climbs[mode.ordinal()].size, maxSize(mode));
+    }
+  }
+
+  /**
+   * Call at the start of every nextKeyValue, before reading.
+   */
+  void startRead() {
+    long now = System.nanoTime();
+    if (pendingMode != null) {
+      record(pendingMode, pendingBytes, now - pendingStart);
+    }
+    pendingMode = null;
+    pendingStart = now;
+  }
+
+  /**
+   * Call after a read of size bytes in mode returned a record of bytes.
+   */
+  void endRead(Mode mode, long size, long bytes) {
+    // Two counters per mode, in Mode order
+    counts[mode.ordinal() * 2]++;
+    counts[mode.ordinal() * 2 + 1] += bytes;
+    // Reads cut short by a block or split end say little about size
+    if (bytes >= size / 2) {
+      pendingMode = mode;
+      pendingBytes = bytes;
+    }
+  }
+
+  private long maxSize(Mode mode) {
+    return mode == Mode.MMAP ? maxSize : copyMaxSize;
+  }
+
+  void record(Mode mode, long bytes, long nanos) {
+    synchronized (climbs) {
+      Climb climb = climbs[mode.ordinal()];
+      climb.reads++;
+      climb.bytes += bytes;
+      climb.nanos += nanos;
+      if (climb.reads < READS_PER_STEP) {
+        return;
+      }
+      double throughput = climb.bytes / (double)Math.max(1, climb.nanos);
+      if (throughput < climb.lastThroughput) {
+        climb.direction = -climb.direction;
+      }
+      climb.lastThroughput = throughput;
+      long max = maxSize(mode);
+      long next = climb.direction > 0 ? climb.size * 2 : climb.size / 2;
+      if (next < minSize || next > max) {
+        climb.direction = -climb.direction;
+        next = Math.max(minSize, Math.min(max, next));
+      }
+      if (next != climb.size && LOG.isDebugEnabled()) {
+        LOG.debug(mode + " chunks " + climb.size + " -> " + next
+            + " bytes at " + String.format("%.1f", throughput * 1e9 / (1024 * 1024))
+            + " MB/s");
+      }
+      climb.size = next;
+      climb.reads = 0;
+      climb.bytes = 0;
+      climb.nanos = 0;
+    }
+  }
+
+  /**
+   * Add this reader's reads to context's counters, and start counting
+   * again from zero.
+   */
+  void publish(TaskAttemptContext context) {
+    for (CHUNK_COUNTER counter : CHUNK_COUNTER.values()) {
+      context.getCounter(counter).increment(counts[counter.ordinal()]);
+      counts[counter.ordinal()] = 0;
+    }
+    synchronized (climbs) {
+      LOG.info("Chunk sizes: mmap " + climbs[Mode.MMAP.ordinal()].size
+          + ", copy " + climbs[Mode.COPY.ordinal()].size
+          + ", pread " + climbs[Mode.PREAD.ordinal()].size);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * A variant of {@link ByteBufferInputFormat} that packs many blocks, from
+ * any number of files, into one split per host, so a table of many small
+ * partition files doesn't pay for a task per file.
+ * <p>
+ * Unlike CombineFileInputFormat, which only knows about replicas, each
+ * block goes to a host that has it cached if there is one, and otherwise to
+ * a host with a replica, picking the host with the fewest bytes so far.
+ * The blocks of each host are then cut into splits of at most
+ * {@link #MAX_SPLIT_SIZE} bytes, by default one split per host. Each split
+ * is read back to back with a {@link ByteBufferRecordReader} per block.
+ */
+public class CombineByteBufferInputFormat extends
+    FileInputFormat<LongWritable, ByteBufferWritable> {
+  private static final Log LOG =
+      LogFactory.getLog(CombineByteBufferInputFormat.class);
+
+  /** Largest split, in bytes. 0 (the default) means one split per host. */
+  public static final String MAX_SPLIT_SIZE =
+      "bytecount.combine.split.maxsize";
+
+  /**
+   * A block, or a whole unsplittable file, assigned to one host.
+   */
+  private static class Chunk {
+    final Path path;
+    final long offset;
+    final long length;
+
+    Chunk(Path path, long offset, long length) {
+      this.path = path;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    CompressionCodecFactory codecs =
+        new CompressionCodecFactory(job.getConfiguration());
+    Map<String, List<Chunk>> chunksByHost =
+        new LinkedHashMap<String, List<Chunk>>();
+    Map<String, Long> bytesByHost = new HashMap<String, Long>();
+    long cachedBytes = 0;
+    long totalBytes = 0;
+
+    for (FileStatus file : listStatus(job)) {
+      if (file.getLen() == 0) {
+        continue;
+      }
+      FileSystem fs = file.getPath().getFileSystem(job.getConfiguration());
+      BlockLocation[] blocks =
+          fs.getFileBlockLocations(file, 0, file.getLen());
+      boolean splitable = codecs.getCodec(file.getPath()) == null;
+      for (BlockLocation block : blocks) {
+        // An unsplittable file goes whole to where its first block is
+        Chunk chunk = splitable
+            ? new Chunk(file.getPath(), block.getOffset(), block.getLength())
+            : new Chunk(file.getPath(), 0, file.getLen());
+        String[] cached = block.getCachedHosts();
+        boolean isCached = cached != null && cached.length > 0;
+        String host = leastLoaded(isCached ? cached : block.getHosts(),
+            bytesByHost);
+        List<Chunk> chunks = chunksByHost.get(host);
+        if (chunks == null) {
+          chunks = new ArrayList<Chunk>();
+          chunksByHost.put(host, chunks);
+        }
+        chunks.add(chunk);
+        Long bytes = bytesByHost.get(host);
+        bytesByHost.put(host, (bytes == null ? 0 : bytes) + chunk.length);
+        totalBytes += chunk.length;
+        if (isCached) {
+          cachedBytes += chunk.length;
+        }
+        if (!splitable) {
+          break;
+        }
+      }
+    }
+
+    long maxSize = job.getConfiguration().getLong(MAX_SPLIT_SIZE, 0);
+    if (maxSize <= 0) {
+      maxSize = Long.MAX_VALUE;
+    }
+    List<InputSplit> splits = new ArrayList<InputSplit>();
+    for (Map.Entry<String, List<Chunk>> entry : chunksByHost.entrySet()) {
+      String[] locations = entry.getKey().isEmpty() ? new String[0]
+          : new String[] { entry.getKey() };
+      List<Chunk> pending = new ArrayList<Chunk>();
+      long pendingBytes = 0;
+      for (Chunk chunk : entry.getValue()) {
+        if (!pending.isEmpty() && pendingBytes + chunk.length > maxSize) {
+          splits.add(makeSplit(pending, locations));
+          pending.clear();
+          pendingBytes = 0;
+        }
+        pending.add(chunk);
+        pendingBytes += chunk.length;
+      }
+      if (!pending.isEmpty()) {
+        splits.add(makeSplit(pending, locations));
+      }
+    }
+    LOG.info("Combined " + totalBytes + " bytes (" + cachedBytes
+        + " cached) on " + chunksByHost.size() + " hosts into "
+        + splits.size() + " splits");
+    return splits;
+  }
+
+  /**
+   * The host with the fewest bytes assigned so far, or "" if there are no
+   * hosts to choose from.
+   */
+  private static String leastLoaded(String[] hosts,
+      Map<String, Long> bytesByHost) {
+    String best = "";
+    long bestBytes = Long.MAX_VALUE;
+    for (String host : hosts) {
+      Long bytes = bytesByHost.get(host);
+      long b = bytes == null ? 0 : bytes;
+      if (b < bestBytes) {
+        best = host;
+        bestBytes = b;
+      }
+    }
+    return best;
+  }
+
+  private static CombineFileSplit makeSplit(List<Chunk> chunks,
+      String[] locations) {
+    Path[] paths = new Path[chunks.size()];
+    long[] offsets = new long[chunks.size()];
+    long[] lengths = new long[chunks.size()];
+    for (int i = 0; i < chunks.size(); i++) {
+      paths[i] = chunks.get(i).path;
+      offsets[i] = chunks.get(i).offset;
+      lengths[i] = chunks.get(i).length;
+    }
+    return new CombineFileSplit(paths, offsets, lengths, locations);
+  }
+
+  @Override
+  public RecordReader<LongWritable, ByteBufferWritable> createRecordReader(
+      InputSplit split, TaskAttemptContext context) throws IOException {
+    return new CombineFileRecordReader<LongWritable, ByteBufferWritable>(
+        (CombineFileSplit)split, context, ChunkRecordReader.class);
+  }
+
+  /**
+   * Reads one chunk of a CombineFileSplit, for CombineFileRecordReader.
+   */
+  public static class ChunkRecordReader
+      extends RecordReader<LongWritable, ByteBufferWritable> {
+    private final ByteBufferRecordReader reader = new ByteBufferRecordReader();
+    private final FileSplit chunk;
+
+    public ChunkRecordReader(CombineFileSplit split,
+        TaskAttemptContext context, Integer index) throws IOException {
+      this.chunk = new FileSplit(split.getPath(index), split.getOffset(index),
+          split.getLength(index), split.getLocations());
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context)
+        throws IOException {
+      reader.initialize(chunk, context);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      return reader.nextKeyValue();
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return reader.getCurrentKey();
+    }
+
+    @Override
+    public ByteBufferWritable getCurrentValue() {
+      return reader.getCurrentValue();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      return reader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+}
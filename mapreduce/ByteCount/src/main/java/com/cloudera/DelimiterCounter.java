@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counts occurrences of a delimiter byte in a buffer, eight bytes at a time.
+ * <p>
+ * Each long read from the buffer is XORed with the delimiter repeated in
+ * every byte, so matching bytes become zero, and the zero bytes are then
+ * flagged in their high bits without carries between bytes and counted with
+ * a single popcount. Byte order does not matter, so direct (mmapped) and heap
+ * buffers are both read with plain getLong.
+ */
+public final class DelimiterCounter {
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long ONES = 0x0101010101010101L;
+
+  private DelimiterCounter() {
+  }
+
+  /**
+   * Count the delimiters between the buffer's position and limit, without
+   * changing either.
+   */
+  public static long count(ByteBuffer buf, byte delimiter) {
+    final long pattern = (delimiter & 0xFFL) * ONES;
+    final int limit = buf.limit();
+    int i = buf.position();
+    long count = 0;
+    for (; i + 8 <= limit; i += 8) {
+      long x = buf.getLong(i) ^ pattern;
+      long t = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+      count += Long.bitCount(t);
+    }
+    for (; i < limit; i++) {
+      if (buf.get(i) == delimiter) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Merges collapsed stacks ("frame;frame;frame count" lines, as written by
+ * async-profiler and stackcollapse.pl) and renders them as an SVG
+ * flamegraph, laid out like flamegraph.pl's: frames sorted by name, width
+ * proportional to samples, and the sample count in each frame's tooltip.
+ */
+public class FlameGraph {
+  public static final String MERGED = "merged" + TaskProfiler.COLLAPSED_SUFFIX;
+
+  private static final int WIDTH = 1200;
+  private static final int FRAME_HEIGHT = 16;
+  private static final int FONT_SIZE = 12;
+  private static final double FONT_WIDTH = 0.59;
+  private static final int PAD = 10;
+  private static final int TITLE_HEIGHT = 30;
+  private static final double MIN_WIDTH = 0.1;
+
+  private static class Frame {
+    final String name;
+    final Map<String, Frame> children = new TreeMap<String, Frame>();
+    long samples;
+
+    Frame(String name) {
+      this.name = name;
+    }
+
+    Frame child(String name) {
+      Frame child = children.get(name);
+      if (child == null) {
+        child = new Frame(name);
+        children.put(name, child);
+      }
+      return child;
+    }
+
+    int depth() {
+      int depth = 0;
+      for (Frame child : children.values()) {
+        depth = Math.max(depth, child.depth());
+      }
+      return depth + 1;
+    }
+  }
+
+  private final Frame root = new Frame("all");
+
+  /**
+   * Add one collapsed line. Lines without a count are ignored.
+   */
+  public void add(String line) {
+    int space = line.lastIndexOf(' ');
+    if (space <= 0) {
+      return;
+    }
+    long samples;
+    try {
+      samples = Long.parseLong(line.substring(space + 1).trim());
+    } catch (NumberFormatException e) {
+      return;
+    }
+    Frame frame = root;
+    frame.samples += samples;
+    for (String name : line.substring(0, space).split(";")) {
+      frame = frame.child(name);
+      frame.samples += samples;
+    }
+  }
+
+  public void addAll(InputStream in) throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      add(line);
+    }
+  }
+
+  /**
+   * Add every *.collapsed file in dir, except a previous merge.
+   *
+   * @return the number of files added.
+   */
+  public int addAll(FileSystem fs, Path dir) throws IOException {
+    int files = 0;
+    for (FileStatus stat : fs.listStatus(dir)) {
+      String name = stat.getPath().getName();
+      if (stat.isFile() && name.endsWith(TaskProfiler.COLLAPSED_SUFFIX)
+          && !name.equals(MERGED)) {
+        InputStream in = fs.open(stat.getPath());
+        try {
+          addAll(in);
+        } finally {
+          in.close();
+        }
+        files++;
+      }
+    }
+    return files;
+  }
+
+  public long getSamples() {
+    return root.samples;
+  }
+
+  /**
+   * Write the merged stacks back out in collapsed form.
+   */
+  public void writeCollapsed(OutputStream out) throws IOException {
+    PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+    for (Frame child : root.children.values()) {
+      writeCollapsed(writer, child, child.name);
+    }
+    writer.flush();
+  }
+
+  private static void writeCollapsed(PrintWriter writer, Frame frame,
+      String stack) {
+    long self = frame.samples;
+    for (Frame child : frame.children.values()) {
+      self -= child.samples;
+      writeCollapsed(writer, child, stack + ";" + child.name);
+    }
+    if (self > 0) {
+      writer.println(stack + " " + self);
+    }
+  }
+
+  public void writeSvg(OutputStream out, String title) throws IOException {
+    int depth = root.depth();
+    int height = TITLE_HEIGHT + depth * FRAME_HEIGHT + 2 * PAD;
+    PrintWriter svg = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+    svg.println("<?xml version=\"1.0\" standalone=\"no\"?>");
+    svg.println("<svg version=\"1.1\" width=\"" + WIDTH + "\" height=\""
+        + height + "\" xmlns=\"http://www.w3.org/2000/svg\">");
+    svg.println("<rect x=\"0\" y=\"0\" width=\"" + WIDTH + "\" height=\""
+        + height + "\" fill=\"#f8f8f8\"/>");
+    svg.println("<text x=\"" + WIDTH / 2 + "\" y=\"" + (PAD + FONT_SIZE + 4)
+        + "\" font-family=\"Verdana\" font-size=\"" + (FONT_SIZE + 5)
+        + "\" text-anchor=\"middle\">" + escape(title) + "</text>");
+    if (root.samples > 0) {
+      double scale = (WIDTH - 2.0 * PAD) / root.samples;
+      writeFrame(svg, root, PAD, height - PAD - FRAME_HEIGHT, scale);
+    }
+    svg.println("</svg>");
+    svg.flush();
+  }
+
+  private void writeFrame(PrintWriter svg, Frame frame, double x, int y,
+      double scale) {
+    double width = frame.samples * scale;
+    if (width < MIN_WIDTH) {
+      return;
+    }
+    String name = escape(frame.name);
+    svg.println(String.format("<g><title>%s (%d samples, %.2f%%)</title>",
+        name, frame.samples, 100.0 * frame.samples / root.samples));
+    svg.println(String.format("<rect x=\"%.1f\" y=\"%d\" width=\"%.1f\" "
+        + "height=\"%d\" fill=\"%s\" rx=\"2\" ry=\"2\"/>", x, y, width,
+        FRAME_HEIGHT - 1, color(frame.name)));
+    int chars = (int)(width / (FONT_SIZE * FONT_WIDTH));
+    if (chars >= 3) {
+      String label = frame.name.length() <= chars ? frame.name
+          : frame.name.substring(0, chars - 2) + "..";
+      svg.println(String.format("<text x=\"%.1f\" y=\"%d\" "
+          + "font-family=\"Verdana\" font-size=\"%d\">%s</text>", x + 3,
+          y + FRAME_HEIGHT - 4, FONT_SIZE, escape(label)));
+    }
+    svg.println("</g>");
+    for (Frame child : frame.children.values()) {
+      writeFrame(svg, child, x, y - FRAME_HEIGHT, scale);
+      x += child.samples * scale;
+    }
+  }
+
+  /**
+   * flamegraph.pl's "hot" palette, chosen by a hash of the name so a frame
+   * has the same color in every graph.
+   */
+  private static String color(String name) {
+    int hash = name.hashCode();
+    int r = 205 + ((hash >>> 16) & 0xFF) * 50 / 255;
+    int g = ((hash >>> 8) & 0xFF) * 230 / 255;
+    int b = (hash & 0xFF) * 55 / 255;
+    return "rgb(" + r + "," + g + "," + b + ")";
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+        .replace("\"", "&quot;");
+  }
+
+  /**
+   * Render collapsed files or directories of them, e.g. the _profiles of a
+   * cached and an uncached run, into one local SVG file.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: FlameGraph <out.svg> <collapsed file or "
+          + "dir>...");
+      System.exit(1);
+    }
+    Configuration conf = new Configuration();
+    FlameGraph graph = new FlameGraph();
+    StringBuilder title = new StringBuilder();
+    for (int i = 1; i < args.length; i++) {
+      Path path = new Path(args[i]);
+      FileSystem fs = path.getFileSystem(conf);
+      if (fs.getFileStatus(path).isDirectory()) {
+        graph.addAll(fs, path);
+      } else {
+        InputStream in = fs.open(path);
+        try {
+          graph.addAll(in);
+        } finally {
+          in.close();
+        }
+      }
+      title.append(i == 1 ? "" : ", ").append(path.getName());
+    }
+    OutputStream out = new FileOutputStream(args[0]);
+    try {
+      graph.writeSvg(out, title.toString());
+    } finally {
+      out.close();
+    }
+    System.out.println("Wrote " + graph.getSamples() + " samples to "
+        + args[0]);
+  }
+}
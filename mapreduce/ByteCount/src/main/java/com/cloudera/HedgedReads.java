@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.cloudera.ByteBufferRecordReader.READ_COUNTER;
+
+/**
+ * Hedged reads for the blocks of a split that have no local or cached
+ * replica, where one slow disk on one datanode can hold up the whole job.
+ * <p>
+ * Those blocks are read with positional reads of {@link #READ_SIZE} bytes
+ * through a DFS client with hedged reads turned on. When a read has not
+ * returned within the threshold, the client issues a second one against
+ * another replica and takes whichever returns first. The threshold starts
+ * at {@link #THRESHOLD_MS} and, once enough reads have been timed, follows
+ * the {@link #PERCENTILE} of the read latencies seen in this JVM.
+ * <p>
+ * The hedging client and its metrics are only in newer DFS clients, and its
+ * threshold has no public setter, so both are reached by reflection. Older
+ * clients, without either, get no hedged reads at all. The client is
+ * shared by the readers in the JVM, and closed when the last one closes.
+ */
+public class HedgedReads {
+  private static final Log LOG = LogFactory.getLog(HedgedReads.class);
+
+  /** Hedge reads of blocks with no local or cached replica. */
+  public static final String ENABLED = "bytecount.hedge.enabled";
+  /** Read latency percentile after which a read is hedged. */
+  public static final String PERCENTILE = "bytecount.hedge.percentile";
+  /** Hedging threshold until enough reads have been timed. */
+  public static final String THRESHOLD_MS = "bytecount.hedge.threshold.ms";
+  /** Threads for hedged reads, shared by all readers in the JVM. */
+  public static final String THREADS = "bytecount.hedge.threads";
+  /** Bytes per positional read, and so per record. */
+  public static final String READ_SIZE = "bytecount.hedge.read.size";
+
+  private static final int MIN_SAMPLES = 20;
+
+  private static FileSystem hedgingFs;
+  private static int users;
+  private static boolean unsupported;
+  private static Method setThreshold;
+  private static Method getMetrics;
+  private static final LatencyHistogram latencies = new LatencyHistogram();
+
+  private final FSDataInputStream in;
+  private final ReadHints hints;
+  private final Path file;
+  private final double percentile;
+  private final Set<String> localHosts;
+  private byte[] buf;
+  private long blockStart;
+  private long blockEnd;
+  private boolean blockRemote;
+  private long bytesRead;
+  private final long startOps;
+  private final long startWins;
+  /** Metrics when closed, as the client may be gone by publish. */
+  private long[] endMetrics;
+
+  private HedgedReads(FSDataInputStream in, Path file, Configuration conf)
+      throws IOException {
+    this.in = in;
+    this.hints = new ReadHints(conf, in);
+    this.file = file;
+    this.percentile = conf.getFloat(PERCENTILE, 95);
+    this.buf = new byte[conf.getInt(READ_SIZE, 8 * 1024 * 1024)];
+    InetAddress local = InetAddress.getLocalHost();
+    this.localHosts = new HashSet<String>(Arrays.asList(local.getHostName(),
+        local.getCanonicalHostName(), local.getHostAddress()));
+    long[] metrics = getMetrics();
+    this.startOps = metrics[0];
+    this.startWins = metrics[1];
+  }
+
+  /**
+   * Hedged reads of file, or null if they are off or file is not in HDFS.
+   */
+  static HedgedReads open(Configuration conf, Path file) throws IOException {
+    if (!conf.getBoolean(ENABLED, false)) {
+      return null;
+    }
+    synchronized (HedgedReads.class) {
+      FileSystem fs = getHedgingFileSystem(conf, file);
+      if (fs == null) {
+        return null;
+      }
+      HedgedReads reads = new HedgedReads(fs.open(file), file, conf);
+      users++;
+      return reads;
+    }
+  }
+
+  /**
+   * A separate client for hedged reads, so the job's shared one is left as
+   * it was configured, or null if file is not in HDFS or the client can't
+   * hedge.
+   */
+  private static synchronized FileSystem getHedgingFileSystem(
+      Configuration conf, Path file) throws IOException {
+    if (unsupported
+        || !(file.getFileSystem(conf) instanceof DistributedFileSystem)) {
+      return null;
+    }
+    if (hedgingFs == null) {
+      Configuration hedgeConf = new Configuration(conf);
+      hedgeConf.setInt("dfs.client.hedged.read.threadpool.size",
+          conf.getInt(THREADS, 8));
+      hedgeConf.setLong("dfs.client.hedged.read.threshold.millis",
+          conf.getLong(THRESHOLD_MS, 500));
+      hedgingFs = FileSystem.newInstance(file.toUri(), hedgeConf);
+      Object client = ((DistributedFileSystem)hedgingFs).getClient();
+      try {
+        getMetrics = client.getClass().getMethod("getHedgedReadMetrics");
+        setThreshold = client.getClass()
+            .getDeclaredMethod("setHedgedReadTimeout", long.class);
+        setThreshold.setAccessible(true);
+      } catch (Exception e) {
+        LOG.warn("This DFS client does not hedge reads", e);
+        unsupported = true;
+        getMetrics = null;
+        setThreshold = null;
+        hedgingFs.close();
+        hedgingFs = null;
+      }
+    }
+    return hedgingFs;
+  }
+
+  /**
+   * { hedged reads, hedged reads that won }, by all readers in this JVM.
+   */
+  private static long[] getMetrics() {
+    if (getMetrics == null) {
+      return new long[2];
+    }
+    try {
+      Object metrics = getMetrics.invoke(
+          ((DistributedFileSystem)hedgingFs).getClient());
+      return new long[] {
+          (Long)metrics.getClass().getMethod("getHedgedReadOps")
+              .invoke(metrics),
+          (Long)metrics.getClass().getMethod("getHedgedReadWins")
+              .invoke(metrics) };
+    } catch (Exception e) {
+      LOG.debug("Failed to get hedged read metrics", e);
+      return new long[2];
+    }
+  }
+
+  /**
+   * Whether pos is in a block with no local or cached replica, which
+   * should be read through {@link #read}.
+   */
+  boolean isRemote(long pos) throws IOException {
+    if (pos < blockStart || pos >= blockEnd) {
+      BlockLocation[] blocks = hedgingFs.getFileBlockLocations(file, pos, 1);
+      if (blocks == null || blocks.length == 0) {
+        return false;
+      }
+      blockStart = blocks[0].getOffset();
+      blockEnd = blockStart + blocks[0].getLength();
+      blockRemote = !containsLocal(blocks[0].getHosts())
+          && !containsLocal(blocks[0].getCachedHosts());
+    }
+    return blockRemote;
+  }
+
+  private boolean containsLocal(String[] hosts) {
+    if (hosts != null) {
+      for (String host : hosts) {
+        if (localHosts.contains(host)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Read up to {@link #READ_SIZE} bytes at pos, but no more than len. The
+   * buffer is reused by the next read.
+   */
+  ByteBuffer read(long pos, long len) throws IOException {
+    return read(pos, len, buf.length);
+  }
+
+  /**
+   * Read up to size bytes at pos, but no more than len.
+   */
+  ByteBuffer read(long pos, long len, int size) throws IOException {
+    int n = (int)Math.min(len, size);
+    if (n > buf.length) {
+      buf = new byte[n];
+    }
+    hints.beforeRead(n);
+    long startNanos = System.nanoTime();
+    in.readFully(pos, buf, 0, n);
+    latencies.record((System.nanoTime() - startNanos) / 1000000);
+    bytesRead += n;
+    if (setThreshold != null && latencies.getTotalCount() >= MIN_SAMPLES) {
+      long threshold =
+          Math.max(1, latencies.getValueAtPercentile(percentile));
+      try {
+        setThreshold.invoke(((DistributedFileSystem)hedgingFs).getClient(),
+            threshold);
+      } catch (Exception e) {
+        LOG.debug("Failed to set the hedged read threshold", e);
+      }
+    }
+    return ByteBuffer.wrap(buf, 0, n);
+  }
+
+  /**
+   * Add this reader's bytes and hedges to context's counters. Hedges are
+   * counted for the whole JVM since open, which is this reader's as long as
+   * the task reads one split at a time.
+   */
+  void publish(TaskAttemptContext context) {
+    long[] metrics = endMetrics != null ? endMetrics : getMetrics();
+    long hedges = metrics[0] - startOps;
+    long wins = metrics[1] - startWins;
+    context.getCounter(READ_COUNTER.BYTES_READ).increment(bytesRead);
+    context.getCounter(READ_COUNTER.HEDGED_READS).increment(hedges);
+    context.getCounter(READ_COUNTER.HEDGED_READ_WINS).increment(wins);
+    context.getCounter(READ_COUNTER.HEDGED_READ_WASTED)
+        .increment(hedges - wins);
+  }
+
+  void close() throws IOException {
+    if (endMetrics != null) {
+      return;
+    }
+    endMetrics = getMetrics();
+    try {
+      in.close();
+    } finally {
+      buf = null;
+      synchronized (HedgedReads.class) {
+        if (--users == 0) {
+          FileSystem fs = hedgingFs;
+          hedgingFs = null;
+          getMetrics = null;
+          setThreshold = null;
+          fs.close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.io.ElasticByteBufferPool;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Compares the {@link ScanKernel}s on the same buffers: either a file held
+ * in zero-copy buffers (mmapped when it is cached), or a synthetic direct
+ * buffer. Each kernel runs every operation for some warmup rounds, so the
+ * JIT has compiled it, then for the measured rounds, and the median and
+ * best throughput are reported. Results are checked against the simple
+ * kernel.
+ */
+public class KernelBenchmark {
+
+  private static final String[] OPS = { "sum", "histogram", "count",
+      "indexOf" };
+  private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final List<ByteBuffer> buffers;
+  private long bytes;
+  private volatile double sink;
+
+  public KernelBenchmark(List<ByteBuffer> buffers) {
+    this.buffers = buffers;
+    for (ByteBuffer buf : buffers) {
+      bytes += buf.remaining();
+    }
+  }
+
+  /**
+   * Run op once over every buffer, returning a checksum of the result.
+   */
+  double runOnce(ScanKernel kernel, String op) {
+    double result = 0;
+    if (op.equals("sum")) {
+      for (ByteBuffer buf : buffers) {
+        result += kernel.sumDoubles(buf);
+      }
+    } else if (op.equals("histogram")) {
+      long[] counts = new long[256];
+      for (ByteBuffer buf : buffers) {
+        kernel.histogram(buf, counts);
+      }
+      for (int i = 0; i < counts.length; i++) {
+        result += counts[i] * (double)(i + 1);
+      }
+    } else if (op.equals("count")) {
+      for (ByteBuffer buf : buffers) {
+        result += kernel.count(buf, (byte)'\n');
+      }
+    } else if (op.equals("indexOf")) {
+      for (ByteBuffer buf : buffers) {
+        int i = buf.position();
+        while ((i = kernel.indexOf(buf, i, (byte)'\n')) >= 0) {
+          result++;
+          i++;
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown op " + op);
+    }
+    return result;
+  }
+
+  /**
+   * Returns { median MB/s, best MB/s, checksum }.
+   */
+  double[] measure(ScanKernel kernel, String op, int warmups,
+      int iterations) {
+    double result = 0;
+    for (int i = 0; i < warmups; i++) {
+      sink += runOnce(kernel, op);
+    }
+    double[] mbPerSec = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      result = runOnce(kernel, op);
+      long nanos = System.nanoTime() - start;
+      mbPerSec[i] = bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+    Arrays.sort(mbPerSec);
+    return new double[] { mbPerSec[iterations / 2],
+        mbPerSec[iterations - 1], result };
+  }
+
+  /**
+   * Random doubles in [0, 1), little-endian like micro/create-float-file,
+   * whose bytes also make a plausible histogram and delimiter search.
+   */
+  static List<ByteBuffer> synthetic(long size) {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    Random random = new Random(0);
+    for (long done = 0; done < size; done += CHUNK_SIZE) {
+      int len = (int)Math.min(CHUNK_SIZE, size - done);
+      ByteBuffer buf =
+          ByteBuffer.allocateDirect(len).order(ByteOrder.LITTLE_ENDIAN);
+      while (buf.remaining() >= 8) {
+        buf.putDouble(random.nextDouble());
+      }
+      buf.flip();
+      buffers.add(buf);
+    }
+    return buffers;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+    Options options = new Options();
+    options.addOption(OptionBuilder.withArgName("path").hasArg()
+        .withDescription("file to read with zero-copy reads").create("file"));
+    options.addOption(OptionBuilder.withArgName("MB").hasArg()
+        .withDescription("size of the synthetic buffer when there is no "
+            + "-file (default 1024)").create("size"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("unmeasured rounds per kernel and op (default 5)")
+        .create("warmups"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("measured rounds per kernel and op (default 10)")
+        .create("iterations"));
+    options.addOption(OptionBuilder.withArgName("file").hasArg()
+        .withDescription("write results as CSV").create("results"));
+    options.addOption(new Option("skipChecksums", "skip checksums"));
+    CommandLine line = new BasicParser().parse(options, remArgs);
+
+    int warmups = Integer.parseInt(line.getOptionValue("warmups", "5"));
+    int iterations = Integer.parseInt(line.getOptionValue("iterations", "10"));
+
+    List<ByteBuffer> buffers;
+    FSDataInputStream in = null;
+    if (line.hasOption("file")) {
+      Path path = new Path(line.getOptionValue("file"));
+      FileSystem fs = path.getFileSystem(conf);
+      in = fs.open(path);
+      EnumSet<ReadOption> readOptions = line.hasOption("skipChecksums")
+          ? EnumSet.of(ReadOption.SKIP_CHECKSUMS)
+          : EnumSet.noneOf(ReadOption.class);
+      ElasticByteBufferPool pool = new ElasticByteBufferPool();
+      buffers = new ArrayList<ByteBuffer>();
+      ByteBuffer buf;
+      while ((buf = in.read(pool, CHUNK_SIZE, readOptions)) != null) {
+        buffers.add(buf);
+      }
+    } else {
+      buffers = synthetic(
+          Long.parseLong(line.getOptionValue("size", "1024")) * 1024 * 1024);
+    }
+
+    KernelBenchmark benchmark = new KernelBenchmark(buffers);
+    System.out.println("Benchmarking over " + benchmark.bytes + " bytes in "
+        + buffers.size() + " buffers");
+    PrintStream csv = null;
+    if (line.hasOption("results")) {
+      csv = new PrintStream(new FileOutputStream(
+          line.getOptionValue("results")), false, "UTF-8");
+      BenchmarkRunner.printRow(csv, new Object[] { "op", "kernel",
+          "median_mb_per_s", "best_mb_per_s", "speedup" });
+    }
+    boolean ok = true;
+    try {
+      for (String op : OPS) {
+        double[] reference = null;
+        for (ScanKernel kernel : new ScanKernel[] { ScanKernels.SIMPLE,
+            ScanKernels.BULK }) {
+          double[] r = benchmark.measure(kernel, op, warmups, iterations);
+          if (reference == null) {
+            reference = r;
+          } else if (Math.abs(r[2] - reference[2])
+              > 1e-6 * Math.abs(reference[2])) {
+            // Only the double sum may differ, by its addition order
+            System.err.println(op + ": " + kernel.getName() + " returned "
+                + r[2] + ", expected " + reference[2]);
+            ok = false;
+          }
+          Object[] row = new Object[] { op, kernel.getName(),
+              String.format("%.1f", r[0]), String.format("%.1f", r[1]),
+              String.format("%.2f", r[0] / reference[0]) };
+          System.out.println(String.format("%-10s %-7s median %9s MB/s, "
+              + "best %9s MB/s, %sx", row));
+          if (csv != null) {
+            BenchmarkRunner.printRow(csv, row);
+          }
+        }
+      }
+    } finally {
+      if (csv != null) {
+        csv.close();
+      }
+      if (in != null) {
+        for (ByteBuffer buf : buffers) {
+          in.releaseBuffer(buf);
+        }
+        in.close();
+      }
+    }
+    System.exit(ok ? 0 : 1);
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+/**
+ * A fixed-size histogram of non-negative long values, in the style of
+ * HdrHistogram.
+ * <p>
+ * Values below 128 are counted exactly. Larger values keep their top 7
+ * significant bits, so every bucket is within 1/64 (about 1.6%) of the
+ * values it holds, at any magnitude. Min and max are tracked exactly.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  private static final int NUM_BUCKETS =
+      SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+  private final long[] counts = new long[NUM_BUCKETS];
+  private long totalCount;
+  private long min = Long.MAX_VALUE;
+  private long max;
+  private double sum;
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int sub = (int)(value >>> shift); // in [HALF_SUB_BUCKETS, SUB_BUCKETS)
+    return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS
+        + (sub - HALF_SUB_BUCKETS);
+  }
+
+  /**
+   * The largest value that maps to the same bucket as the given index.
+   */
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+    long sub = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  public synchronized void record(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value " + value);
+    }
+    counts[index(value)]++;
+    totalCount++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  public synchronized void add(LatencyHistogram other) {
+    synchronized (other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      totalCount += other.totalCount;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+
+  public synchronized void reset() {
+    java.util.Arrays.fill(counts, 0);
+    totalCount = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  /**
+   * Returns a copy and resets this histogram, for interval reporting.
+   */
+  public synchronized LatencyHistogram drain() {
+    LatencyHistogram copy = new LatencyHistogram();
+    copy.add(this);
+    reset();
+    return copy;
+  }
+
+  public synchronized long getTotalCount() {
+    return totalCount;
+  }
+
+  public synchronized long getMin() {
+    return totalCount == 0 ? 0 : min;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  public synchronized double getMean() {
+    return totalCount == 0 ? 0 : sum / totalCount;
+  }
+
+  /**
+   * The value at the given percentile, in [0, 100], to bucket precision.
+   */
+  public synchronized long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long rank = (long)Math.ceil(percentile / 100.0 * totalCount);
+    rank = Math.max(1, Math.min(totalCount, rank));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(max, Math.max(min, highestValue(i)));
+      }
+    }
+    return max;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A comparison between a partition column and a string literal, like the
+ * "ss_date&gt;='2002-11-22'" in scripts/impala/sql.
+ * <p>
+ * Values are compared as strings, as Impala does for string partition
+ * columns, so ss_date&gt;='2003' matches ss_date=2003-01-01. A null
+ * predicate (no WHERE clause) matches every partition.
+ */
+public class PartitionPredicate {
+  private static final Pattern PREDICATE = Pattern.compile(
+      "(\\w+)\\s*(>=|<=|!=|<>|=|<|>)\\s*'([^']*)'");
+
+  private final String column;
+  private final String op;
+  private final String value;
+
+  public PartitionPredicate(String column, String op, String value) {
+    this.column = column;
+    this.op = op;
+    this.value = value;
+  }
+
+  /**
+   * Parse a bare predicate, or pull the predicate out of the WHERE clause
+   * of a count(*) query. Returns null if there is no WHERE clause.
+   */
+  public static PartitionPredicate parse(String text) {
+    String lower = text.toLowerCase();
+    int where = lower.indexOf(" where ");
+    if (where >= 0) {
+      text = text.substring(where + " where ".length());
+    } else if (lower.trim().startsWith("select")) {
+      return null;
+    }
+    Matcher m = PREDICATE.matcher(text);
+    if (!m.find()) {
+      throw new IllegalArgumentException("Cannot parse predicate: " + text);
+    }
+    return new PartitionPredicate(m.group(1), m.group(2), m.group(3));
+  }
+
+  public String getColumn() {
+    return column;
+  }
+
+  /**
+   * Whether a partition directory named "column=value" survives pruning.
+   * Directories for other columns are kept.
+   */
+  public boolean accept(String dirName) {
+    int eq = dirName.indexOf('=');
+    if (eq < 0 || !dirName.substring(0, eq).equals(column)) {
+      return true;
+    }
+    int cmp = dirName.substring(eq + 1).compareTo(value);
+    if (op.equals(">=")) {
+      return cmp >= 0;
+    } else if (op.equals(">")) {
+      return cmp > 0;
+    } else if (op.equals("<=")) {
+      return cmp <= 0;
+    } else if (op.equals("<")) {
+      return cmp < 0;
+    } else if (op.equals("=")) {
+      return cmp == 0;
+    } else {
+      return cmp != 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return column + op + "'" + value + "'";
+  }
+}
@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * A count(*) over a table laid out as partition directories, e.g.
+ * store_sales/ss_date=2002-11-22/*.
+ * <p>
+ * Partitions are pruned by a {@link PartitionPredicate} on their directory
+ * names. The surviving files are cut into block-sized scan ranges, which are
+ * scanned in parallel with zero-copy reads, counting delimiter-terminated
+ * rows with {@link DelimiterCounter}.
+ * <p>
+ * To measure the effect of HDFS caching on scans without an Impala cluster,
+ * run MiniClusterPartitionScan from the test classpath, which generates a
+ * store_sales-like table in a MiniDFSCluster and scans it with {@link #run}.
+ */
+public class PartitionScan {
+  private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * What a scan read and how long it took.
+   */
+  public static class Result {
+    public long rows;
+    public long bytes;
+    public int partitions;
+    public int files;
+    public int ranges;
+    public long millis;
+
+    @Override
+    public String toString() {
+      return String.format("%d rows, %d bytes, %d partitions, %d files, "
+          + "%d ranges in %.3fs (%.1f MB/s)", rows, bytes, partitions, files,
+          ranges, millis / 1000.0,
+          bytes / (1024.0 * 1024.0) / Math.max(0.001, millis / 1000.0));
+    }
+  }
+
+  /**
+   * A byte range of one file, scanned by one thread.
+   */
+  private class ScanRange implements Callable<long[]> {
+    final Path file;
+    final long start;
+    final long end;
+    final boolean last;
+
+    ScanRange(Path file, long start, long end, boolean last) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.last = last;
+    }
+
+    /**
+     * Returns { rows, bytes }.
+     */
+    @Override
+    public long[] call() throws IOException {
+      long rows = 0;
+      long pos = start;
+      byte lastByte = delimiter;
+      FSDataInputStream in = fs.open(file);
+      try {
+        in.seek(start);
+        while (pos < end) {
+          ByteBuffer buf = in.read(pool,
+              (int)Math.min(CHUNK_SIZE, end - pos), readOptions);
+          if (buf == null) {
+            break;
+          }
+          try {
+            rows += DelimiterCounter.count(buf, delimiter);
+            pos += buf.remaining();
+            if (buf.hasRemaining()) {
+              lastByte = buf.get(buf.limit() - 1);
+            }
+          } finally {
+            in.releaseBuffer(buf);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      if (last && lastByte != delimiter) {
+        // An unterminated last row still counts
+        rows++;
+      }
+      return new long[] { rows, pos - start };
+    }
+  }
+
+  private final FileSystem fs;
+  private final Path table;
+  private final EnumSet<ReadOption> readOptions;
+  private final int threads;
+  private final byte delimiter;
+  private final StripedByteBufferPool pool = new StripedByteBufferPool();
+
+  public PartitionScan(FileSystem fs, Path table, boolean skipChecksums) {
+    this(fs, table, skipChecksums, 1, (byte)'\n');
+  }
+
+  public PartitionScan(FileSystem fs, Path table, boolean skipChecksums,
+      int threads, byte delimiter) {
+    this.fs = fs;
+    this.table = table;
+    this.readOptions = skipChecksums ? EnumSet.of(ReadOption.SKIP_CHECKSUMS)
+        : EnumSet.noneOf(ReadOption.class);
+    this.threads = threads;
+    this.delimiter = delimiter;
+  }
+
+  /**
+   * The partition directories that survive the predicate.
+   */
+  public List<Path> prune(PartitionPredicate predicate) throws IOException {
+    List<Path> partitions = new ArrayList<Path>();
+    for (FileStatus stat : fs.listStatus(table)) {
+      String name = stat.getPath().getName();
+      if (stat.isDirectory() && name.contains("=")
+          && (predicate == null || predicate.accept(name))) {
+        partitions.add(stat.getPath());
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * The data files of the given partitions.
+   */
+  public List<FileStatus> listFiles(List<Path> partitions)
+      throws IOException {
+    List<FileStatus> files = new ArrayList<FileStatus>();
+    for (Path partition : partitions) {
+      for (FileStatus stat : fs.listStatus(partition)) {
+        String name = stat.getPath().getName();
+        if (stat.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+          files.add(stat);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Run select count(*) ... where predicate.
+   */
+  public long count(PartitionPredicate predicate) throws IOException {
+    return scan(predicate).rows;
+  }
+
+  /**
+   * Run select count(*) ... where predicate, returning what was read.
+   */
+  public Result scan(PartitionPredicate predicate) throws IOException {
+    long start = System.currentTimeMillis();
+    Result result = new Result();
+    List<Path> partitions = prune(predicate);
+    List<FileStatus> files = listFiles(partitions);
+    result.partitions = partitions.size();
+    result.files = files.size();
+
+    List<ScanRange> ranges = new ArrayList<ScanRange>();
+    for (FileStatus file : files) {
+      long len = file.getLen();
+      long blockSize = Math.max(1, file.getBlockSize());
+      for (long off = 0; off < len; off += blockSize) {
+        long end = Math.min(len, off + blockSize);
+        ranges.add(new ScanRange(file.getPath(), off, end, end == len));
+      }
+    }
+    result.ranges = ranges.size();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<long[]> f : executor.invokeAll(ranges)) {
+        long[] counts = f.get();
+        result.rows += counts[0];
+        result.bytes += counts[1];
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while scanning " + table, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new IOException("Failed to scan " + table, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    result.millis = System.currentTimeMillis() - start;
+    return result;
+  }
+
+  private static byte parseDelimiter(String s) {
+    if (s.equals("\\n")) {
+      return '\n';
+    } else if (s.equals("\\t")) {
+      return '\t';
+    } else if (s.length() == 1) {
+      return (byte)s.charAt(0);
+    }
+    return Integer.decode(s).byteValue();
+  }
+
+  /**
+   * The options of main, which MiniClusterPartitionScan extends.
+   */
+  static Options createOptions() {
+    Options options = new Options();
+    options.addOption(OptionBuilder.withArgName("path").hasArg()
+        .withDescription("table directory (default "
+            + "/test-warehouse/tpcds1000gb.store_sales)").create("table"));
+    options.addOption(OptionBuilder.withArgName("predicate").hasArg()
+        .withDescription("e.g. \"ss_date>='2002-11-22'\" or a whole "
+            + "count(*) query (default: no predicate)").create("where"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("scan threads (default 8)").create("threads"));
+    options.addOption(OptionBuilder.withArgName("char").hasArg()
+        .withDescription("row delimiter (default \\n)").create("delimiter"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("scans to run (default 3)").create("iterations"));
+    options.addOption(new Option("skipChecksums", "skip checksums"));
+    options.addOption(OptionBuilder.withArgName("pool").hasArg()
+        .withDescription("also run the scans with the pruned partitions "
+            + "cached in this pool").create("cache"));
+    options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+        .withDescription("give up waiting for caching after this long "
+            + "(default " + QueryBenchmark.DEFAULT_CACHE_TIMEOUT + ")")
+        .create("cacheTimeout"));
+    return options;
+  }
+
+  /**
+   * Run the scans line asks for against table, uncached and then, with
+   * -cache, cached.
+   */
+  static void run(Configuration conf, FileSystem fs, Path table,
+      CommandLine line) throws Exception {
+    PartitionPredicate predicate = line.hasOption("where")
+        ? PartitionPredicate.parse(line.getOptionValue("where")) : null;
+    int threads = Integer.parseInt(line.getOptionValue("threads", "8"));
+    byte delimiter = parseDelimiter(line.getOptionValue("delimiter", "\\n"));
+    int iterations = Integer.parseInt(line.getOptionValue("iterations", "3"));
+    String cachePool = line.getOptionValue("cache");
+
+    PartitionScan scan = new PartitionScan(fs, table,
+        line.hasOption("skipChecksums"), threads, delimiter);
+    System.out.println("Scanning " + table
+        + (predicate == null ? "" : " where " + predicate) + " with "
+        + threads + " threads");
+    for (int i = 1; i <= iterations; i++) {
+      System.out.println("uncached " + i + ": " + scan.scan(predicate));
+    }
+    if (cachePool != null) {
+      HdfsAdmin admin = new HdfsAdmin(fs.getUri(), conf);
+      List<Long> ids =
+          QueryBenchmark.cache(admin, cachePool, scan.prune(predicate),
+              Long.parseLong(line.getOptionValue("cacheTimeout",
+                  QueryBenchmark.DEFAULT_CACHE_TIMEOUT)) * 1000);
+      try {
+        for (int i = 1; i <= iterations; i++) {
+          System.out.println("cached " + i + ": " + scan.scan(predicate));
+        }
+      } finally {
+        for (Long id : ids) {
+          admin.removeCacheDirective(id);
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+    CommandLine line = new BasicParser().parse(createOptions(), remArgs);
+    run(conf, FileSystem.get(conf), new Path(line.getOptionValue("table",
+        "/test-warehouse/tpcds1000gb.store_sales")), line);
+    System.exit(0);
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.io.ByteBufferPool;
+import org.apache.hadoop.io.ElasticByteBufferPool;
+
+/**
+ * Compares ByteBufferPool implementations under contention. Each thread
+ * does what a reader with one chunk read ahead does: gets two buffers of
+ * random sizes, touches them, and puts them back. Every pool runs at every
+ * thread count for a warmup round, so the JIT has compiled it, then for
+ * the measured rounds, and the median throughput is reported.
+ */
+public class PoolBenchmark {
+
+  private static final String[] POOLS = { "elastic", "striped" };
+
+  private final int[] sizes;
+  private final boolean direct;
+  private final long millis;
+
+  public PoolBenchmark(int[] sizes, boolean direct, long millis) {
+    this.sizes = sizes;
+    this.direct = direct;
+    this.millis = millis;
+  }
+
+  static ByteBufferPool newPool(String name) {
+    if (name.equals("elastic")) {
+      return new ElasticByteBufferPool();
+    } else if (name.equals("striped")) {
+      return new StripedByteBufferPool();
+    }
+    throw new IllegalArgumentException("Unknown pool " + name);
+  }
+
+  /**
+   * Run threads against pool for the round's duration, returning the
+   * get/put pairs per second across all of them.
+   */
+  double runOnce(final ByteBufferPool pool, int threads)
+      throws InterruptedException {
+    final AtomicLong ops = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] deadline = new long[1];
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final Random random = new Random(t);
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          long n = 0;
+          while (System.nanoTime() < deadline[0]) {
+            for (int i = 0; i < 64; i++) {
+              ByteBuffer a = pool.getBuffer(direct,
+                  sizes[random.nextInt(sizes.length)]);
+              ByteBuffer b = pool.getBuffer(direct,
+                  sizes[random.nextInt(sizes.length)]);
+              a.put(0, (byte)1);
+              b.put(0, (byte)1);
+              pool.putBuffer(a);
+              pool.putBuffer(b);
+            }
+            n += 128;
+          }
+          ops.addAndGet(n);
+        }
+      };
+      workers.add(worker);
+      worker.start();
+    }
+    long begin = System.nanoTime();
+    deadline[0] = begin + millis * 1000000L;
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return ops.get() / ((System.nanoTime() - begin) / 1e9);
+  }
+
+  /**
+   * Median ops/s of iterations rounds, after one warmup round.
+   */
+  double measure(String name, int threads, int iterations)
+      throws InterruptedException {
+    ByteBufferPool pool = newPool(name);
+    runOnce(pool, threads);
+    double[] results = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      results[i] = runOnce(pool, threads);
+    }
+    java.util.Arrays.sort(results);
+    return results[iterations / 2];
+  }
+
+  private static int[] parseInts(String list) {
+    String[] parts = list.split(",");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options();
+    options.addOption(OptionBuilder.withArgName("n,n,...").hasArg()
+        .withDescription("thread counts (default 1,2,4,8,16,32,64)")
+        .create("threads"));
+    options.addOption(OptionBuilder.withArgName("bytes,bytes,...").hasArg()
+        .withDescription("buffer sizes to pick from (default "
+            + "65536,1048576,8388608)").create("sizes"));
+    options.addOption(OptionBuilder.withArgName("ms").hasArg()
+        .withDescription("length of each round (default 1000)")
+        .create("millis"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("measured rounds per pool and thread count "
+            + "(default 5)").create("iterations"));
+    options.addOption(new Option("heap", "use heap instead of direct "
+        + "buffers"));
+    options.addOption(OptionBuilder.withArgName("file").hasArg()
+        .withDescription("write results as CSV").create("results"));
+    CommandLine line = new BasicParser().parse(options, args);
+
+    int[] threadCounts =
+        parseInts(line.getOptionValue("threads", "1,2,4,8,16,32,64"));
+    int iterations = Integer.parseInt(line.getOptionValue("iterations", "5"));
+    PoolBenchmark benchmark = new PoolBenchmark(
+        parseInts(line.getOptionValue("sizes", "65536,1048576,8388608")),
+        !line.hasOption("heap"),
+        Long.parseLong(line.getOptionValue("millis", "1000")));
+
+    PrintStream csv = null;
+    if (line.hasOption("results")) {
+      csv = new PrintStream(new FileOutputStream(
+          line.getOptionValue("results")), false, "UTF-8");
+      BenchmarkRunner.printRow(csv, new Object[] { "threads", "pool",
+          "ops_per_s", "speedup" });
+    }
+    try {
+      for (int threads : threadCounts) {
+        double reference = 0;
+        for (String pool : POOLS) {
+          double opsPerSec = benchmark.measure(pool, threads, iterations);
+          if (reference == 0) {
+            reference = opsPerSec;
+          }
+          Object[] row = new Object[] { threads, pool,
+              String.format("%.0f", opsPerSec),
+              String.format("%.2f", opsPerSec / reference) };
+          System.out.println(String.format("%3s threads %-8s %12s ops/s, "
+              + "%sx", row));
+          if (csv != null) {
+            BenchmarkRunner.printRow(csv, row);
+          }
+        }
+      }
+    } finally {
+      if (csv != null) {
+        csv.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CacheFlag;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveEntry;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveInfo;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveStats;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Replays the count(*) queries from scripts/impala as FileSystem scans and
+ * reports latency percentiles per scenario.
+ * <p>
+ * A scenario is a query size (small: ss_date&gt;='2002-11-22', big:
+ * ss_date&gt;='2002-08-04'), whether the scanned partitions are cached
+ * (directives are added, waited for and removed around the scenario), and
+ * whether the page cache is dropped before every query or only once before
+ * the first. This covers the runs behind scripts/impala/data/*-10.out, but
+ * records every query's time in a histogram instead of one coarse duration.
+ */
+public class QueryBenchmark {
+
+  static final String SMALL_PREDICATE = "ss_date>='2002-11-22'";
+  static final String BIG_PREDICATE = "ss_date>='2002-08-04'";
+
+  private static final long CACHE_POLL_MS = 10000;
+  /** Default for -cacheTimeout, in seconds. */
+  static final String DEFAULT_CACHE_TIMEOUT = "1800";
+
+  /**
+   * One combination of query size, cache state and page cache dropping.
+   */
+  static class Scenario {
+    final String name;
+    final PartitionPredicate predicate;
+    final boolean cached;
+    final boolean dropEveryQuery;
+
+    Scenario(String name) {
+      String[] parts = name.split("-");
+      if (parts.length != 3
+          || !(parts[0].equals("small") || parts[0].equals("big"))
+          || !(parts[1].equals("cached") || parts[1].equals("uncached"))
+          || !(parts[2].equals("drop") || parts[2].equals("nodrop"))) {
+        throw new IllegalArgumentException("Scenario " + name + " is not "
+            + "<small|big>-<cached|uncached>-<drop|nodrop>");
+      }
+      this.name = name;
+      this.predicate = PartitionPredicate.parse(
+          parts[0].equals("small") ? SMALL_PREDICATE : BIG_PREDICATE);
+      this.cached = parts[1].equals("cached");
+      this.dropEveryQuery = parts[2].equals("drop");
+    }
+  }
+
+  private final FileSystem fs;
+  private final HdfsAdmin admin;
+  private final PartitionScan scan;
+  private final String pool;
+  private final String dropCachesCommand;
+  private final long cacheTimeoutMs;
+
+  public QueryBenchmark(Configuration conf, Path table, String pool,
+      String dropCachesCommand, boolean skipChecksums, int threads,
+      long cacheTimeoutMs) throws IOException {
+    URI uri = FileSystem.getDefaultUri(conf);
+    this.fs = FileSystem.get(uri, conf);
+    this.admin = new HdfsAdmin(uri, conf);
+    this.scan = new PartitionScan(fs, table, skipChecksums, threads,
+        (byte)'\n');
+    this.pool = pool;
+    this.dropCachesCommand = dropCachesCommand;
+    this.cacheTimeoutMs = cacheTimeoutMs;
+  }
+
+  /**
+   * Run numQueries queries of the scenario, appending each to queriesCsv.
+   */
+  public LatencyHistogram run(Scenario scenario, int numQueries,
+      PrintStream queriesCsv) throws IOException, InterruptedException {
+    System.out.println("Running scenario " + scenario.name + " ("
+        + scenario.predicate + ")");
+    List<Long> directives = new ArrayList<Long>();
+    if (scenario.cached) {
+      directives = cache(admin, pool, scan.prune(scenario.predicate),
+          cacheTimeoutMs);
+    }
+    try {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 1; i <= numQueries; i++) {
+        if (i == 1 || scenario.dropEveryQuery) {
+          dropCaches();
+        }
+        long start = System.nanoTime();
+        long rows = scan.count(scenario.predicate);
+        long micros = (System.nanoTime() - start) / 1000;
+        histogram.record(micros);
+        System.out.println(String.format("\tquery %d: %d rows in %.3fs", i,
+            rows, micros / 1000000.0));
+        if (queriesCsv != null) {
+          BenchmarkRunner.printRow(queriesCsv, new Object[] {
+              scenario.name, i, rows, micros / 1000.0 });
+          queriesCsv.flush();
+        }
+      }
+      return histogram;
+    } finally {
+      for (Long id : directives) {
+        admin.removeCacheDirective(id);
+      }
+    }
+  }
+
+  /**
+   * Add a directive for every partition and wait until they are cached.
+   * Returns the directive ids. If they aren't all cached within timeoutMs,
+   * e.g. because the pool's limit or the datanodes' cache capacity was hit,
+   * the directives are removed again and an IOException says how far
+   * caching got.
+   */
+  static List<Long> cache(HdfsAdmin admin, String pool,
+      List<Path> partitions, long timeoutMs)
+      throws IOException, InterruptedException {
+    List<Long> ids = new ArrayList<Long>();
+    for (Path partition : partitions) {
+      ids.add(admin.addCacheDirective(
+          new CacheDirectiveInfo.Builder().setPath(partition).setPool(pool)
+              .build(), EnumSet.noneOf(CacheFlag.class)));
+    }
+    System.out.println("\tAdded " + ids.size() + " directives to pool "
+        + pool + ", waiting for caching...");
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      long needed = 0;
+      long cached = 0;
+      RemoteIterator<CacheDirectiveEntry> it = admin.listCacheDirectives(
+          new CacheDirectiveInfo.Builder().setPool(pool).build());
+      while (it.hasNext()) {
+        CacheDirectiveEntry entry = it.next();
+        if (ids.contains(entry.getInfo().getId())) {
+          CacheDirectiveStats stats = entry.getStats();
+          needed += stats.getBytesNeeded();
+          cached += stats.getBytesCached();
+        }
+      }
+      if (cached >= needed) {
+        System.out.println("\tAll " + needed + " bytes cached");
+        return ids;
+      }
+      System.out.println("\t" + cached + " of " + needed + " bytes cached");
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        for (Long id : ids) {
+          admin.removeCacheDirective(id);
+        }
+        throw new IOException("Timed out after " + timeoutMs / 1000
+            + "s waiting for caching in pool " + pool + ": " + cached
+            + " of " + needed + " bytes cached");
+      }
+      Thread.sleep(Math.min(CACHE_POLL_MS, remaining));
+    }
+  }
+
+  private void dropCaches() throws IOException, InterruptedException {
+    if (dropCachesCommand != null) {
+      BenchmarkRunner.runCommand(dropCachesCommand);
+    }
+  }
+
+  private static Object[] summaryRow(String scenario, LatencyHistogram h) {
+    return new Object[] { scenario, h.getTotalCount(),
+        h.getValueAtPercentile(50) / 1000.0,
+        h.getValueAtPercentile(90) / 1000.0,
+        h.getValueAtPercentile(99) / 1000.0, h.getMax() / 1000.0,
+        Math.round(h.getMean()) / 1000.0 };
+  }
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+    Options options = new Options();
+    options.addOption(OptionBuilder.withArgName("path").hasArg()
+        .withDescription("table directory (default "
+            + "/test-warehouse/tpcds1000gb.store_sales)").create("table"));
+    options.addOption(OptionBuilder.withArgName("list").hasArg()
+        .withDescription("comma-separated <small|big>-<cached|uncached>-"
+            + "<drop|nodrop> scenarios (default all)").create("scenarios"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("queries per scenario (default 10)")
+        .create("queries"));
+    options.addOption(OptionBuilder.withArgName("name").hasArg()
+        .withDescription("cache pool for cached scenarios (default pool1)")
+        .create("pool"));
+    options.addOption(OptionBuilder.withArgName("command").hasArg()
+        .withDescription("command that drops the page cache")
+        .create("dropCaches"));
+    options.addOption(OptionBuilder.withArgName("prefix").hasArg()
+        .withDescription("write <prefix>-queries.csv and "
+            + "<prefix>-summary.csv").create("results"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("scan threads per query (default 8)")
+        .create("threads"));
+    options.addOption(new Option("skipChecksums", "skip checksums"));
+    options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+        .withDescription("give up waiting for caching after this long "
+            + "(default " + DEFAULT_CACHE_TIMEOUT + ")")
+        .create("cacheTimeout"));
+
+    CommandLine line = new BasicParser().parse(options, remArgs);
+    List<Scenario> scenarios = new ArrayList<Scenario>();
+    if (line.hasOption("scenarios")) {
+      for (String name : line.getOptionValue("scenarios").split(",")) {
+        scenarios.add(new Scenario(name.trim()));
+      }
+    } else {
+      for (String size : new String[] { "small", "big" }) {
+        for (String cache : new String[] { "cached", "uncached" }) {
+          for (String drop : new String[] { "drop", "nodrop" }) {
+            scenarios.add(new Scenario(size + "-" + cache + "-" + drop));
+          }
+        }
+      }
+    }
+    if (!line.hasOption("dropCaches")) {
+      System.err.println("Warning: no -dropCaches command given, so drop "
+          + "and nodrop scenarios are identical");
+    }
+
+    QueryBenchmark benchmark = new QueryBenchmark(conf,
+        new Path(line.getOptionValue("table",
+            "/test-warehouse/tpcds1000gb.store_sales")),
+        line.getOptionValue("pool", "pool1"),
+        line.getOptionValue("dropCaches"), line.hasOption("skipChecksums"),
+        Integer.parseInt(line.getOptionValue("threads", "8")),
+        Long.parseLong(line.getOptionValue("cacheTimeout",
+            DEFAULT_CACHE_TIMEOUT)) * 1000);
+    int numQueries = Integer.parseInt(line.getOptionValue("queries", "10"));
+
+    String prefix = line.getOptionValue("results");
+    PrintStream queriesCsv = null;
+    PrintStream summaryCsv = null;
+    if (prefix != null) {
+      queriesCsv = new PrintStream(
+          new FileOutputStream(prefix + "-queries.csv"), false, "UTF-8");
+      BenchmarkRunner.printRow(queriesCsv,
+          new Object[] { "scenario", "query", "rows", "ms" });
+      summaryCsv = new PrintStream(
+          new FileOutputStream(prefix + "-summary.csv"), false, "UTF-8");
+    }
+    Object[] header = new Object[] { "scenario", "queries", "p50_ms",
+        "p90_ms", "p99_ms", "max_ms", "mean_ms" };
+    List<Object[]> rows = new ArrayList<Object[]>();
+    try {
+      for (Scenario scenario : scenarios) {
+        rows.add(summaryRow(scenario.name,
+            benchmark.run(scenario, numQueries, queriesCsv)));
+      }
+    } finally {
+      if (queriesCsv != null) {
+        queriesCsv.close();
+      }
+    }
+
+    System.out.println();
+    String format = "%-22s %8s %10s %10s %10s %10s %10s";
+    System.out.println(String.format(format, header));
+    for (Object[] row : rows) {
+      System.out.println(String.format(format, row));
+    }
+    if (summaryCsv != null) {
+      BenchmarkRunner.printRow(summaryCsv, header);
+      for (Object[] row : rows) {
+        BenchmarkRunner.printRow(summaryCsv, row);
+      }
+      summaryCsv.close();
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Per-job readahead and drop-behind for a reader's streams, which the
+ * datanode applies to the block files it reads for us.
+ * <p>
+ * A cold scan that reads everything once should run with drop-behind, so
+ * the datanode drops the pages it has sent instead of evicting the hot set
+ * of a concurrent workload (see scripts/impala/run_count_concurrent.sh).
+ * Neither affects reads served from an mmap of a cached block.
+ * <p>
+ * Readahead is either a fixed number of bytes or "auto", which sets it to
+ * the size of each read, up to {@link #MAX_AUTO_READAHEAD}. Settings left
+ * unset keep the client's defaults.
+ */
+public class ReadHints {
+  private static final Log LOG = LogFactory.getLog(ReadHints.class);
+
+  /** Readahead in bytes, or "auto" to follow the read size. */
+  public static final String READAHEAD = "bytecount.readahead";
+  /** Whether the datanode should drop pages from its cache once sent. */
+  public static final String DROP_BEHIND = "bytecount.dropbehind";
+
+  static final long MAX_AUTO_READAHEAD = 64 * 1024 * 1024;
+
+  private static boolean warned;
+
+  private final FSDataInputStream in;
+  private final boolean auto;
+  private boolean supported = true;
+  private long readahead = -1;
+
+  ReadHints(Configuration conf, FSDataInputStream in) throws IOException {
+    this.in = in;
+    String value = conf.get(READAHEAD);
+    this.auto = "auto".equals(value);
+    try {
+      if (conf.get(DROP_BEHIND) != null) {
+        in.setDropBehind(conf.getBoolean(DROP_BEHIND, false));
+      }
+      if (value != null && !auto) {
+        setReadahead(conf.getLong(READAHEAD, 0));
+      }
+    } catch (UnsupportedOperationException e) {
+      warnUnsupported(e);
+    }
+  }
+
+  /**
+   * Call before each read of len bytes.
+   */
+  void beforeRead(long len) throws IOException {
+    if (auto && supported) {
+      try {
+        setReadahead(Math.min(len, MAX_AUTO_READAHEAD));
+      } catch (UnsupportedOperationException e) {
+        warnUnsupported(e);
+      }
+    }
+  }
+
+  private void setReadahead(long bytes) throws IOException {
+    // Changing it closes the stream's block reader, so only when it changes
+    if (bytes != readahead) {
+      in.setReadahead(bytes);
+      readahead = bytes;
+    }
+  }
+
+  private void warnUnsupported(Exception e) {
+    supported = false;
+    synchronized (ReadHints.class) {
+      if (!warned) {
+        LOG.warn("Stream does not take readahead or drop-behind hints", e);
+        warned = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The loops our consumers run over zero-copy buffers. Every method works on
+ * the bytes between the buffer's position and limit, and changes neither.
+ *
+ * @see ScanKernels
+ */
+public interface ScanKernel {
+
+  String getName();
+
+  /**
+   * Sum the buffer as little-endian doubles, like micro/vecsum. Trailing
+   * bytes that don't make a whole double are ignored.
+   */
+  double sumDoubles(ByteBuffer buf);
+
+  /**
+   * Add the count of each byte value to counts, indexed by unsigned value.
+   */
+  void histogram(ByteBuffer buf, long[] counts);
+
+  /**
+   * Count the occurrences of b.
+   */
+  long count(ByteBuffer buf, byte b);
+
+  /**
+   * The absolute index of the first b at or after from, or -1.
+   */
+  int indexOf(ByteBuffer buf, int from, byte b);
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The {@link ScanKernel} implementations, selected by name with
+ * bytecount.kernel.
+ * <ul>
+ * <li>"simple" (the default): one element per iteration through
+ * ByteBuffer.get, the reference the others are checked against.</li>
+ * <li>"bulk": word-at-a-time loops. Doubles are summed into
+ * four independent accumulators, like vecsum's unrolled _mm_add_pd, so the
+ * adds pipeline. Byte search is SWAR over longs, and histograms use
+ * {@link ByteHistogram}'s interleaved tables.</li>
+ * </ul>
+ * The bulk double sum adds in a different order, so it can differ from the
+ * simple sum in the last bits. Bulk stays opt-in until it wins on a
+ * cluster: its interleaved histogram is slower than simple's on random
+ * bytes, which is what ByteCount's mapper usually sees.
+ */
+public final class ScanKernels {
+
+  /** Kernel used by ByteCount and the scan tools. */
+  public static final String KERNEL = "bytecount.kernel";
+
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long ONES = 0x0101010101010101L;
+
+  /** BULK's histogram tables, one set per thread since kernels are shared. */
+  private static final ThreadLocal<ByteHistogram> HISTOGRAMS =
+      new ThreadLocal<ByteHistogram>() {
+        @Override
+        protected ByteHistogram initialValue() {
+          return new ByteHistogram();
+        }
+      };
+
+  public static final ScanKernel SIMPLE = new ScanKernel() {
+    @Override
+    public String getName() {
+      return "simple";
+    }
+
+    @Override
+    public double sumDoubles(ByteBuffer buf) {
+      ByteBuffer b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      final int limit = b.limit() - 7;
+      double sum = 0;
+      for (int i = b.position(); i < limit; i += 8) {
+        sum += b.getDouble(i);
+      }
+      return sum;
+    }
+
+    @Override
+    public void histogram(ByteBuffer buf, long[] counts) {
+      final int limit = buf.limit();
+      for (int i = buf.position(); i < limit; i++) {
+        counts[buf.get(i) & 0xFF]++;
+      }
+    }
+
+    @Override
+    public long count(ByteBuffer buf, byte b) {
+      final int limit = buf.limit();
+      long count = 0;
+      for (int i = buf.position(); i < limit; i++) {
+        if (buf.get(i) == b) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public int indexOf(ByteBuffer buf, int from, byte b) {
+      final int limit = buf.limit();
+      for (int i = Math.max(from, buf.position()); i < limit; i++) {
+        if (buf.get(i) == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  };
+
+  public static final ScanKernel BULK = new ScanKernel() {
+    @Override
+    public String getName() {
+      return "bulk";
+    }
+
+    @Override
+    public double sumDoubles(ByteBuffer buf) {
+      ByteBuffer b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      final int limit = b.limit();
+      int i = b.position();
+      double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      for (; i + 32 <= limit; i += 32) {
+        s0 += b.getDouble(i);
+        s1 += b.getDouble(i + 8);
+        s2 += b.getDouble(i + 16);
+        s3 += b.getDouble(i + 24);
+      }
+      for (; i + 8 <= limit; i += 8) {
+        s0 += b.getDouble(i);
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public void histogram(ByteBuffer buf, long[] counts) {
+      ByteHistogram histogram = HISTOGRAMS.get();
+      histogram.clear();
+      histogram.add(buf);
+      long[] added = histogram.getCounts();
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += added[i];
+      }
+    }
+
+    @Override
+    public long count(ByteBuffer buf, byte b) {
+      return DelimiterCounter.count(buf, b);
+    }
+
+    @Override
+    public int indexOf(ByteBuffer buf, int from, byte b) {
+      // Big-endian, so the first byte in memory is the most significant
+      ByteBuffer be = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+      final long pattern = (b & 0xFFL) * ONES;
+      final int limit = be.limit();
+      int i = Math.max(from, be.position());
+      for (; i + 8 <= limit; i += 8) {
+        long x = be.getLong(i) ^ pattern;
+        long t = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+        if (t != 0) {
+          return i + (Long.numberOfLeadingZeros(t) >>> 3);
+        }
+      }
+      for (; i < limit; i++) {
+        if (be.get(i) == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  };
+
+  private ScanKernels() {
+  }
+
+  public static ScanKernel get(String name) {
+    if (name.equals(SIMPLE.getName())) {
+      return SIMPLE;
+    } else if (name.equals(BULK.getName())) {
+      return BULK;
+    }
+    throw new IllegalArgumentException("Unknown kernel " + name);
+  }
+
+  public static ScanKernel get(Configuration conf) {
+    return get(conf.get(KERNEL, SIMPLE.getName()));
+  }
+}
@@ -0,0 +1,337 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.ElasticByteBufferPool;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Runs concurrent scan streams over a hot (cached) and a cold (uncached)
+ * data set, and reports how each holds up next to the other.
+ * <p>
+ * Each stream repeatedly scans whole files from its data set with the same
+ * zero-copy reads as ByteBufferRecordReader, counting newline-terminated
+ * rows like a count(*) query. Every interval, the throughput and scan
+ * latency percentiles of each class of stream are printed, and optionally
+ * written to a CSV file.
+ */
+public class ScanLoadGenerator {
+
+  private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * A set of streams scanning the same data set.
+   */
+  static class StreamClass {
+    final String name;
+    final List<Path> files;
+    final AtomicLong bytes = new AtomicLong();
+    final LatencyHistogram interval = new LatencyHistogram();
+    final LatencyHistogram total = new LatencyHistogram();
+    long lastBytes;
+
+    StreamClass(String name, List<Path> files) {
+      this.name = name;
+      this.files = files;
+    }
+  }
+
+  /**
+   * One scanning thread.
+   */
+  class Stream extends Thread {
+    final StreamClass streamClass;
+    final int id;
+    final ElasticByteBufferPool pool = new ElasticByteBufferPool();
+    long bytes;
+    long scans;
+    long rows;
+
+    Stream(StreamClass streamClass, int id) {
+      super(streamClass.name + "-" + id);
+      this.streamClass = streamClass;
+      this.id = id;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      // Stagger the starting file so streams don't scan in lockstep
+      int next = id;
+      try {
+        while (running) {
+          List<Path> files = streamClass.files;
+          Path file = files.get(next++ % files.size());
+          long start = System.nanoTime();
+          rows += scan(file);
+          if (!running) {
+            // The scan was cut short, so its latency is meaningless
+            break;
+          }
+          long micros = (System.nanoTime() - start) / 1000;
+          streamClass.interval.record(micros);
+          streamClass.total.record(micros);
+          scans++;
+        }
+      } catch (IOException e) {
+        System.err.println(getName() + " failed: " + e);
+        error = e;
+      }
+    }
+
+    private long scan(Path file) throws IOException {
+      long count = 0;
+      FSDataInputStream in = fs.open(file);
+      try {
+        ByteBuffer buf;
+        while (running
+            && (buf = in.read(pool, chunkSize, readOptions)) != null) {
+          try {
+            final int limit = buf.limit();
+            for (int i = buf.position(); i < limit; i++) {
+              if (buf.get(i) == '\n') {
+                count++;
+              }
+            }
+            bytes += buf.remaining();
+            streamClass.bytes.addAndGet(buf.remaining());
+          } finally {
+            in.releaseBuffer(buf);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      return count;
+    }
+  }
+
+  private final FileSystem fs;
+  private final int chunkSize;
+  private final EnumSet<ReadOption> readOptions;
+  private final List<StreamClass> classes = new ArrayList<StreamClass>();
+  private final List<Stream> streams = new ArrayList<Stream>();
+  private volatile boolean running = true;
+  private volatile IOException error;
+
+  public ScanLoadGenerator(FileSystem fs, int chunkSize,
+      boolean skipChecksums) {
+    this.fs = fs;
+    this.chunkSize = chunkSize;
+    this.readOptions = skipChecksums ? EnumSet.of(ReadOption.SKIP_CHECKSUMS)
+        : EnumSet.noneOf(ReadOption.class);
+  }
+
+  /**
+   * Add numStreams streams that scan the non-hidden files under path.
+   */
+  public void addStreams(String name, Path path, int numStreams)
+      throws IOException {
+    if (numStreams <= 0) {
+      return;
+    }
+    List<Path> files = new ArrayList<Path>();
+    RemoteIterator<LocatedFileStatus> it = fs.listFiles(path, true);
+    while (it.hasNext()) {
+      Path p = it.next().getPath();
+      if (!p.getName().startsWith("_") && !p.getName().startsWith(".")) {
+        files.add(p);
+      }
+    }
+    if (files.isEmpty()) {
+      throw new IOException("No files to scan under " + path);
+    }
+    StreamClass streamClass = new StreamClass(name, files);
+    classes.add(streamClass);
+    for (int i = 0; i < numStreams; i++) {
+      streams.add(new Stream(streamClass, i));
+    }
+    System.out.println("Added " + numStreams + " " + name + " streams over "
+        + files.size() + " files under " + path);
+  }
+
+  /**
+   * Run all streams for the given duration, reporting every interval.
+   */
+  public void run(long durationMs, long intervalMs, PrintStream csv)
+      throws IOException, InterruptedException {
+    if (csv != null) {
+      BenchmarkRunner.printRow(csv, new Object[] { "time_s", "class",
+          "scans", "mb_per_s", "p50_ms", "p90_ms", "p99_ms", "max_ms" });
+    }
+    long start = System.currentTimeMillis();
+    for (Stream s : streams) {
+      s.start();
+    }
+    long lastReport = start;
+    while (error == null) {
+      long now = System.currentTimeMillis();
+      long elapsed = now - start;
+      if (elapsed >= durationMs) {
+        break;
+      }
+      Thread.sleep(Math.max(1, Math.min(intervalMs - (now - lastReport),
+          durationMs - elapsed)));
+      now = System.currentTimeMillis();
+      if (now - lastReport >= intervalMs) {
+        report((now - start) / 1000.0, now - lastReport, csv);
+        lastReport = now;
+      }
+    }
+    running = false;
+    for (Stream s : streams) {
+      s.join();
+    }
+    if (error != null) {
+      throw error;
+    }
+    printSummary(System.currentTimeMillis() - start);
+  }
+
+  private void report(double time, long periodMs, PrintStream csv) {
+    for (StreamClass c : classes) {
+      LatencyHistogram h = c.interval.drain();
+      long bytes = c.bytes.get();
+      double mbPerSec =
+          (bytes - c.lastBytes) / (1024.0 * 1024.0) / (periodMs / 1000.0);
+      c.lastBytes = bytes;
+      Object[] row = new Object[] { String.format("%.1f", time), c.name,
+          h.getTotalCount(), String.format("%.1f", mbPerSec),
+          millis(h.getValueAtPercentile(50)),
+          millis(h.getValueAtPercentile(90)),
+          millis(h.getValueAtPercentile(99)), millis(h.getMax()) };
+      System.out.println(String.format("%7ss %-6s scans=%-4d %9s MB/s "
+          + "p50=%sms p90=%sms p99=%sms max=%sms", row));
+      if (csv != null) {
+        BenchmarkRunner.printRow(csv, row);
+        csv.flush();
+      }
+    }
+  }
+
+  private static String millis(long micros) {
+    return String.format("%.1f", micros / 1000.0);
+  }
+
+  private void printSummary(long elapsedMs) {
+    System.out.println();
+    System.out.println("Summary over " + elapsedMs + " ms:");
+    for (StreamClass c : classes) {
+      LatencyHistogram h = c.total;
+      System.out.println(String.format("  %-6s %9.1f MB/s, %d scans, "
+          + "p50=%sms p90=%sms p99=%sms max=%sms", c.name,
+          c.bytes.get() / (1024.0 * 1024.0) / (elapsedMs / 1000.0),
+          h.getTotalCount(), millis(h.getValueAtPercentile(50)),
+          millis(h.getValueAtPercentile(90)),
+          millis(h.getValueAtPercentile(99)), millis(h.getMax())));
+    }
+    for (Stream s : streams) {
+      System.out.println(String.format("    %-10s %9.1f MB/s, %d scans, "
+          + "%d rows", s.getName(),
+          s.bytes / (1024.0 * 1024.0) / (elapsedMs / 1000.0), s.scans,
+          s.rows));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+    Options options = new Options();
+    options.addOption(OptionBuilder.withArgName("path").hasArg()
+        .withDescription("cached data set").create("hot"));
+    options.addOption(OptionBuilder.withArgName("path").hasArg()
+        .withDescription("uncached data set").create("cold"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("streams scanning the hot data (default 1)")
+        .create("hotStreams"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("streams scanning the cold data (default 1)")
+        .create("coldStreams"));
+    options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+        .withDescription("how long to run (default 60)").create("duration"));
+    options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+        .withDescription("reporting interval (default 5)")
+        .create("interval"));
+    options.addOption(OptionBuilder.withArgName("bytes").hasArg()
+        .withDescription("maximum bytes per read").create("chunkSize"));
+    options.addOption(OptionBuilder.withArgName("file").hasArg()
+        .withDescription("write interval results as CSV").create("results"));
+    options.addOption(new Option("skipChecksums", "skip checksums"));
+
+    CommandLine line = new BasicParser().parse(options, remArgs);
+    if (!line.hasOption("hot") && !line.hasOption("cold")) {
+      System.err.println("Usage: ScanLoadGenerator [-hot <path>] "
+          + "[-hotStreams <n>] [-cold <path>] [-coldStreams <n>] "
+          + "[-duration <seconds>] [-interval <seconds>] "
+          + "[-chunkSize <bytes>] [-results <file>] [-skipChecksums]");
+      System.exit(1);
+    }
+
+    ScanLoadGenerator generator = new ScanLoadGenerator(FileSystem.get(conf),
+        Integer.parseInt(line.getOptionValue("chunkSize",
+            Integer.toString(DEFAULT_CHUNK_SIZE))),
+        line.hasOption("skipChecksums"));
+    if (line.hasOption("hot")) {
+      generator.addStreams("hot", new Path(line.getOptionValue("hot")),
+          Integer.parseInt(line.getOptionValue("hotStreams", "1")));
+    }
+    if (line.hasOption("cold")) {
+      generator.addStreams("cold", new Path(line.getOptionValue("cold")),
+          Integer.parseInt(line.getOptionValue("coldStreams", "1")));
+    }
+
+    PrintStream csv = null;
+    if (line.hasOption("results")) {
+      csv = new PrintStream(new FileOutputStream(
+          line.getOptionValue("results")), false, "UTF-8");
+    }
+    try {
+      generator.run(
+          Long.parseLong(line.getOptionValue("duration", "60")) * 1000,
+          Long.parseLong(line.getOptionValue("interval", "5")) * 1000, csv);
+    } finally {
+      if (csv != null) {
+        csv.close();
+      }
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Tracks what the DFS client's ShortCircuitCache, which holds short-circuit
+ * replicas and their mmaps, does for one reader.
+ * <p>
+ * The client keeps no statistics of its own, so the cache is looked at
+ * through its test visitor before and after each read, and the change is
+ * put down to that read: one more mmap is a creation, a zero-copy read
+ * without one is a reuse, and one more replica is a replica-info miss.
+ * Mmaps that disappear are evictions, whether the read caused them or the
+ * cleaner thread did in between. A zero-copy read that was not served from
+ * an mmap, because the client hit dfs.client.mmap.cache.size or could not
+ * map the block, is a failure.
+ * <p>
+ * The cache is a private client class, so it is reached by reflection. On
+ * clients without it, {@link #create} returns null and nothing is counted.
+ */
+public class ShortCircuitStats {
+  private static final Log LOG = LogFactory.getLog(ShortCircuitStats.class);
+
+  /**
+   * Counters published alongside
+   * {@link ByteBufferRecordReader.READ_COUNTER}.
+   */
+  public static enum CACHE_COUNTER {
+    MMAP_CREATED,
+    MMAP_REUSED,
+    MMAP_EVICTED,
+    MMAP_FAILED,
+    REPLICA_CACHE_HITS,
+    REPLICA_CACHE_MISSES
+  };
+
+  private static boolean warned;
+
+  /**
+   * Sizes of the cache's maps at one point in time.
+   */
+  private static class Snapshot implements InvocationHandler {
+    int mmaps;
+    int replicas;
+    int failedLoads;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getName().equals("visit")) {
+        // (numOutstandingMmaps, replicas, failedLoads, evictable,
+        //  evictableMmapped)
+        mmaps = (Integer)args[0] + ((Map<?, ?>)args[4]).size();
+        replicas = ((Map<?, ?>)args[1]).size();
+        failedLoads = ((Map<?, ?>)args[2]).size();
+      }
+      return null;
+    }
+  }
+
+  private final Object cache;
+  private final Method accept;
+  private final Class<?> visitorClass;
+  private final long[] counts = new long[CACHE_COUNTER.values().length];
+  private Snapshot before;
+  private Snapshot last;
+
+  private ShortCircuitStats(Object cache, Method accept,
+      Class<?> visitorClass) {
+    this.cache = cache;
+    this.accept = accept;
+    this.visitorClass = visitorClass;
+  }
+
+  /**
+   * Stats for client's cache, or null if it can't be looked at.
+   */
+  static ShortCircuitStats create(DFSClient client) {
+    try {
+      Object clientContext = client.getClass()
+          .getMethod("getClientContext").invoke(client);
+      Object cache = clientContext.getClass()
+          .getMethod("getShortCircuitCache").invoke(clientContext);
+      // The cache has moved between packages across client versions, so
+      // take its visitor from wherever this client's cache lives
+      Class<?> visitorClass = Class.forName(
+          cache.getClass().getName() + "$CacheVisitor", true,
+          cache.getClass().getClassLoader());
+      Method accept = cache.getClass().getMethod("accept", visitorClass);
+      ShortCircuitStats stats =
+          new ShortCircuitStats(cache, accept, visitorClass);
+      stats.last = stats.snapshot();
+      return stats;
+    } catch (Exception e) {
+      synchronized (ShortCircuitStats.class) {
+        if (!warned) {
+          LOG.warn("Short-circuit cache statistics are not available", e);
+          warned = true;
+        }
+      }
+      return null;
+    }
+  }
+
+  private Snapshot snapshot() throws Exception {
+    Snapshot snapshot = new Snapshot();
+    Object visitor = Proxy.newProxyInstance(visitorClass.getClassLoader(),
+        new Class<?>[] { visitorClass }, snapshot);
+    accept.invoke(cache, visitor);
+    return snapshot;
+  }
+
+  /**
+   * Call before each zero-copy read.
+   */
+  void beforeRead() {
+    try {
+      before = snapshot();
+      evicted(last.mmaps - before.mmaps);
+    } catch (Exception e) {
+      LOG.debug("Failed to look at the short-circuit cache", e);
+      before = null;
+    }
+  }
+
+  /**
+   * Call after each zero-copy read.
+   *
+   * @param gotBuffer whether the read returned a buffer
+   * @param zeroCopyBytes bytes the read served from an mmap
+   * @param shortCircuitBytes bytes the read served short-circuit, including
+   *          zeroCopyBytes
+   */
+  void afterRead(boolean gotBuffer, long zeroCopyBytes,
+      long shortCircuitBytes) {
+    if (before == null) {
+      return;
+    }
+    Snapshot after;
+    try {
+      after = snapshot();
+    } catch (Exception e) {
+      LOG.debug("Failed to look at the short-circuit cache", e);
+      return;
+    }
+    int created = 0;
+    if (zeroCopyBytes > 0) {
+      created = after.mmaps > before.mmaps ? 1 : 0;
+      increment(created > 0 ? CACHE_COUNTER.MMAP_CREATED
+          : CACHE_COUNTER.MMAP_REUSED);
+    } else if (gotBuffer) {
+      increment(CACHE_COUNTER.MMAP_FAILED);
+    }
+    evicted(before.mmaps + created - after.mmaps);
+    if (shortCircuitBytes > 0 || after.failedLoads > before.failedLoads) {
+      increment(after.replicas > before.replicas
+          || after.failedLoads > before.failedLoads
+          ? CACHE_COUNTER.REPLICA_CACHE_MISSES
+          : CACHE_COUNTER.REPLICA_CACHE_HITS);
+    }
+    last = after;
+    before = null;
+  }
+
+  private void evicted(int mmaps) {
+    if (mmaps > 0) {
+      counts[CACHE_COUNTER.MMAP_EVICTED.ordinal()] += mmaps;
+    }
+  }
+
+  private void increment(CACHE_COUNTER counter) {
+    counts[counter.ordinal()]++;
+  }
+
+  /**
+   * Add what has been counted so far to context's counters, and start
+   * counting again from zero.
+   */
+  void publish(TaskAttemptContext context) {
+    for (CACHE_COUNTER counter : CACHE_COUNTER.values()) {
+      context.getCounter(counter).increment(counts[counter.ordinal()]);
+      counts[counter.ordinal()] = 0;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.io.ByteBufferPool;
+
+/**
+ * A ByteBufferPool for many threads, where ElasticByteBufferPool's
+ * synchronized TreeMap makes every get and put wait on the others.
+ * <p>
+ * Buffers come in power-of-two size classes from 4KB to 1GB. Each thread
+ * keeps a few of each class up to 16MB, so a reader that puts a buffer
+ * back and gets the next one touches no shared state. The rest go to a
+ * lock-free free list per class. Requests above 1GB, and buffers whose
+ * capacity isn't a class size, are not pooled. Unlike ElasticByteBufferPool,
+ * the free lists hold at most a given number of bytes, 512MB by default,
+ * and buffers put back beyond that are left to the GC, so a pool that
+ * lives as long as the JVM doesn't keep every buffer it ever handed out.
+ */
+public class StripedByteBufferPool implements ByteBufferPool {
+
+  private static final int MIN_SHIFT = 12;
+  private static final int MAX_SHIFT = 30;
+  private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+  /** Buffers per class that each thread keeps for itself. */
+  private static final int THREAD_CACHE_SIZE = 2;
+  /** Larger classes are only kept in the shared free lists. */
+  private static final int MAX_CACHED_CLASS = 24 - MIN_SHIFT;
+  static final long DEFAULT_MAX_POOLED = 512L * 1024 * 1024;
+
+  /**
+   * One thread's buffers of one kind, a small stack per size class.
+   */
+  private static class ThreadCache {
+    final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][THREAD_CACHE_SIZE];
+    final int[] counts = new int[CLASSES];
+  }
+
+  private final ConcurrentLinkedQueue<ByteBuffer>[] directFree;
+  private final ConcurrentLinkedQueue<ByteBuffer>[] heapFree;
+  private final long maxPooled;
+  /** Bytes in the free lists, direct and heap. */
+  private final AtomicLong pooled = new AtomicLong();
+  private final ThreadLocal<ThreadCache> directCache =
+      new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+          return new ThreadCache();
+        }
+      };
+  private final ThreadLocal<ThreadCache> heapCache =
+      new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+          return new ThreadCache();
+        }
+      };
+
+  public StripedByteBufferPool() {
+    this(DEFAULT_MAX_POOLED);
+  }
+
+  /**
+   * A pool whose free lists hold at most maxPooled bytes.
+   */
+  public StripedByteBufferPool(long maxPooled) {
+    this.maxPooled = maxPooled;
+    directFree = newFreeLists();
+    heapFree = newFreeLists();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ConcurrentLinkedQueue<ByteBuffer>[] newFreeLists() {
+    ConcurrentLinkedQueue<ByteBuffer>[] lists =
+        new ConcurrentLinkedQueue[CLASSES];
+    for (int i = 0; i < CLASSES; i++) {
+      lists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+    return lists;
+  }
+
+  /**
+   * The size class that holds length bytes, or -1 if none does.
+   */
+  static int sizeClass(int length) {
+    if (length <= 1 << MIN_SHIFT) {
+      return 0;
+    }
+    int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+    return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+  }
+
+  @Override
+  public ByteBuffer getBuffer(boolean direct, int length) {
+    int c = sizeClass(length);
+    if (c < 0) {
+      return direct ? ByteBuffer.allocateDirect(length)
+          : ByteBuffer.allocate(length);
+    }
+    ByteBuffer buf = null;
+    if (c <= MAX_CACHED_CLASS) {
+      ThreadCache cache = (direct ? directCache : heapCache).get();
+      if (cache.counts[c] > 0) {
+        int i = --cache.counts[c];
+        buf = cache.buffers[c][i];
+        cache.buffers[c][i] = null;
+      }
+    }
+    if (buf == null) {
+      buf = (direct ? directFree : heapFree)[c].poll();
+      if (buf != null) {
+        pooled.addAndGet(-buf.capacity());
+      } else {
+        int capacity = 1 << (c + MIN_SHIFT);
+        buf = direct ? ByteBuffer.allocateDirect(capacity)
+            : ByteBuffer.allocate(capacity);
+      }
+    }
+    buf.clear();
+    return buf;
+  }
+
+  @Override
+  public void putBuffer(ByteBuffer buf) {
+    int capacity = buf.capacity();
+    int c = sizeClass(capacity);
+    if (c < 0 || capacity != 1 << (c + MIN_SHIFT)) {
+      // Not one of ours; leave it to the GC
+      return;
+    }
+    if (c <= MAX_CACHED_CLASS) {
+      ThreadCache cache = (buf.isDirect() ? directCache : heapCache).get();
+      if (cache.counts[c] < THREAD_CACHE_SIZE) {
+        cache.buffers[c][cache.counts[c]++] = buf;
+        return;
+      }
+    }
+    if (pooled.addAndGet(capacity) > maxPooled) {
+      // Full; leave it to the GC
+      pooled.addAndGet(-capacity);
+      return;
+    }
+    (buf.isDirect() ? directFree : heapFree)[c].offer(buf);
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Profiles a map task with async-profiler, from setup to cleanup, and
+ * writes its collapsed stacks to HDFS for {@link FlameGraph} to merge.
+ * <p>
+ * async-profiler is driven through its Java API by reflection, so it only
+ * has to be present when profiling: libasyncProfiler.so at the same path on
+ * every node, and its jar on the task classpath (e.g. with -libjars).
+ * Profiling only the task body leaves JVM startup and the framework's
+ * shutdown out of the flamegraph.
+ */
+public class TaskProfiler {
+
+  /** Path to libasyncProfiler.so on every node. Enables profiling. */
+  public static final String LIB = "bytecount.profile.lib";
+  /** async-profiler event: cpu, wall, itimer, alloc or lock. */
+  public static final String EVENT = "bytecount.profile.event";
+  /** Sampling interval in the event's units (ns for cpu and wall). */
+  public static final String INTERVAL = "bytecount.profile.interval";
+  /** Directory the collapsed stacks of each task are written to. */
+  public static final String DIR = "bytecount.profile.dir";
+
+  public static final String COLLAPSED_SUFFIX = ".collapsed";
+
+  private final Object profiler;
+  private final Method execute;
+
+  private TaskProfiler(Object profiler, Method execute) {
+    this.profiler = profiler;
+    this.execute = execute;
+  }
+
+  /**
+   * Write profiles under the job's output directory, where
+   * FileInputFormat and ByteCountVerifier ignore them.
+   */
+  public static void setOutputDir(Configuration conf, Path outputDir) {
+    conf.set(DIR, new Path(outputDir, "_profiles").toString());
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.get(LIB) != null;
+  }
+
+  public static Path getDir(Configuration conf) {
+    return new Path(conf.get(DIR));
+  }
+
+  /**
+   * Start profiling this task, if the job asked for it.
+   *
+   * @return the running profiler, or null if profiling is off.
+   */
+  public static TaskProfiler start(Configuration conf) throws IOException {
+    if (!isEnabled(conf)) {
+      return null;
+    }
+    TaskProfiler profiler;
+    try {
+      Class<?> clazz = Class.forName("one.profiler.AsyncProfiler");
+      Object instance = clazz.getMethod("getInstance", String.class)
+          .invoke(null, conf.get(LIB));
+      profiler = new TaskProfiler(instance,
+          clazz.getMethod("execute", String.class));
+    } catch (ClassNotFoundException e) {
+      throw new IOException("async-profiler's jar is not on the task "
+          + "classpath; add it with -libjars", e);
+    } catch (NoSuchMethodException e) {
+      throw new IOException("Unsupported async-profiler version", e);
+    } catch (IllegalAccessException e) {
+      throw new IOException("Unsupported async-profiler version", e);
+    } catch (InvocationTargetException e) {
+      throw new IOException("Failed to load " + conf.get(LIB),
+          e.getCause());
+    }
+    profiler.execute("start,event=" + conf.get(EVENT, "cpu") + ",interval="
+        + conf.getLong(INTERVAL, 10000000L));
+    return profiler;
+  }
+
+  /**
+   * Stop profiling and write this attempt's collapsed stacks.
+   */
+  public void stop(TaskAttemptContext context) throws IOException {
+    String collapsed = execute("collapsed");
+    execute("stop");
+    Configuration conf = context.getConfiguration();
+    Path file = new Path(getDir(conf),
+        context.getTaskAttemptID() + COLLAPSED_SUFFIX);
+    OutputStream out = file.getFileSystem(conf).create(file, true);
+    try {
+      out.write(collapsed.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private String execute(String command) throws IOException {
+    try {
+      return (String)execute.invoke(profiler, command);
+    } catch (IllegalAccessException e) {
+      throw new IOException("async-profiler " + command + " failed", e);
+    } catch (InvocationTargetException e) {
+      throw new IOException("async-profiler " + command + " failed",
+          e.getCause());
+    }
+  }
+
+  /**
+   * Merge the collapsed stacks of every task and render them, next to the
+   * per-task files.
+   *
+   * @return the flamegraph, or null if no task wrote a profile.
+   */
+  public static Path render(Configuration conf, String title)
+      throws IOException {
+    Path dir = getDir(conf);
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) {
+      return null;
+    }
+    FlameGraph graph = new FlameGraph();
+    int tasks = graph.addAll(fs, dir);
+    if (tasks == 0) {
+      return null;
+    }
+    OutputStream out = fs.create(new Path(dir, FlameGraph.MERGED), true);
+    try {
+      graph.writeCollapsed(out);
+    } finally {
+      out.close();
+    }
+    Path svg = new Path(dir, "flamegraph.svg");
+    out = fs.create(svg, true);
+    try {
+      graph.writeSvg(out, title + " (" + tasks + " tasks)");
+    } finally {
+      out.close();
+    }
+    return svg;
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.ChunkSizer.Mode;
+
+public class ChunkSizerTest {
+  private static final long MB = 1024 * 1024;
+
+  private ChunkSizer sizer;
+
+  private static ChunkSizer newSizer(long max, long copyMax) {
+    Configuration conf = new Configuration();
+    conf.setLong(ChunkSizer.MIN_SIZE, MB);
+    conf.setLong(ChunkSizer.MAX_SIZE, max);
+    conf.setLong(ChunkSizer.COPY_MAX_SIZE, copyMax);
+    return new ChunkSizer(conf);
+  }
+
+  @Before
+  public void setUp() {
+    ChunkSizer.reset();
+    sizer = newSizer(8 * MB, 2 * MB);
+  }
+
+  /**
+   * Record one step's worth of full reads at the given MB/ms, and return
+   * the size chosen for the next.
+   */
+  private long step(Mode mode, long mbPerMs) {
+    for (int i = 0; i < ChunkSizer.READS_PER_STEP; i++) {
+      long size = sizer.getSize(mode);
+      sizer.record(mode, size, size / MB * 1000000 / mbPerMs);
+    }
+    return sizer.getSize(mode);
+  }
+
+  @Test
+  public void testClimbsWhileFaster() {
+    assertEquals(MB, sizer.getSize(Mode.MMAP));
+    // Doubles while throughput improves, reverses at the cap
+    assertEquals(2 * MB, step(Mode.MMAP, 1));
+    assertEquals(4 * MB, step(Mode.MMAP, 2));
+    assertEquals(8 * MB, step(Mode.MMAP, 3));
+    assertEquals(8 * MB, step(Mode.MMAP, 4));
+    assertEquals(4 * MB, step(Mode.MMAP, 5));
+    // Other modes keep their own sizes
+    assertEquals(MB, sizer.getSize(Mode.COPY));
+    assertEquals(MB, sizer.getSize(Mode.PREAD));
+  }
+
+  @Test
+  public void testTurnsWhenSlower() {
+    assertEquals(2 * MB, step(Mode.MMAP, 2));
+    assertEquals(4 * MB, step(Mode.MMAP, 3));
+    // Worse at 4MB: back down, and keep going while it improves
+    assertEquals(2 * MB, step(Mode.MMAP, 1));
+    assertEquals(MB, step(Mode.MMAP, 2));
+    // Reverses at the floor
+    assertEquals(MB, step(Mode.MMAP, 3));
+    assertEquals(2 * MB, step(Mode.MMAP, 4));
+  }
+
+  @Test
+  public void testWaitsForAFullStep() {
+    for (int i = 1; i < ChunkSizer.READS_PER_STEP; i++) {
+      sizer.record(Mode.MMAP, MB, 1000000);
+    }
+    assertEquals(MB, sizer.getSize(Mode.MMAP));
+    sizer.record(Mode.MMAP, MB, 1000000);
+    assertEquals(2 * MB, sizer.getSize(Mode.MMAP));
+  }
+
+  @Test
+  public void testShortReadsIgnored() {
+    for (int i = 0; i < 2 * ChunkSizer.READS_PER_STEP; i++) {
+      sizer.startRead();
+      sizer.endRead(Mode.MMAP, MB, MB / 4);
+    }
+    sizer.startRead();
+    assertEquals(MB, sizer.getSize(Mode.MMAP));
+    for (int i = 0; i < ChunkSizer.READS_PER_STEP; i++) {
+      sizer.startRead();
+      sizer.endRead(Mode.MMAP, MB, MB);
+    }
+    sizer.startRead();
+    assertEquals(2 * MB, sizer.getSize(Mode.MMAP));
+  }
+
+  @Test
+  public void testCopiesCappedLower() {
+    assertEquals(2 * MB, step(Mode.COPY, 1));
+    assertEquals(2 * MB, step(Mode.COPY, 2));
+    assertEquals(MB, step(Mode.COPY, 3));
+    assertEquals(2 * MB, step(Mode.PREAD, 1));
+    assertEquals(2 * MB, step(Mode.PREAD, 2));
+  }
+
+  @Test
+  public void testLearnedSizesClamped() {
+    sizer = newSizer(8 * MB, 8 * MB);
+    assertEquals(2 * MB, step(Mode.PREAD, 1));
+    assertEquals(4 * MB, step(Mode.PREAD, 2));
+    // A reader with a lower cap, later in the same JVM
+    sizer = newSizer(8 * MB, 2 * MB);
+    assertEquals(2 * MB, sizer.getSize(Mode.PREAD));
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DelimiterCounterTest {
+  private static final byte[] DELIMITERS =
+      { '\n', '|', 0, 1, 0x7F, (byte)0x80, (byte)0xFE, (byte)0xFF };
+
+  private static long naiveCount(ByteBuffer buf, byte delimiter) {
+    long count = 0;
+    for (int i = buf.position(); i < buf.limit(); i++) {
+      if (buf.get(i) == delimiter) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void check(byte[] data, int offset, int length) {
+    for (boolean direct : new boolean[] { false, true }) {
+      ByteBuffer buf = direct ? ByteBuffer.allocateDirect(data.length)
+          : ByteBuffer.allocate(data.length);
+      buf.put(data);
+      buf.limit(offset + length);
+      buf.position(offset);
+      for (byte delimiter : DELIMITERS) {
+        assertEquals("direct " + direct + " offset " + offset + " length "
+            + length + " delimiter " + delimiter,
+            naiveCount(buf, delimiter),
+            DelimiterCounter.count(buf, delimiter));
+        assertEquals(offset, buf.position());
+        assertEquals(offset + length, buf.limit());
+      }
+    }
+  }
+
+  /**
+   * Random bytes drawn mostly from the delimiters, so most words hold
+   * several matches and their neighbours.
+   */
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = random.nextBoolean()
+          ? DELIMITERS[random.nextInt(DELIMITERS.length)]
+          : (byte)random.nextInt();
+    }
+    return data;
+  }
+
+  @Test
+  public void testShortAndUnaligned() {
+    Random random = new Random(0);
+    // Tails under 8 bytes, alone and after whole words, at every offset
+    for (int length = 0; length <= 40; length++) {
+      for (int offset = 0; offset < 8; offset++) {
+        check(randomBytes(random, offset + length), offset, length);
+      }
+    }
+  }
+
+  @Test
+  public void testPowersOfTwo() {
+    Random random = new Random(1);
+    for (int length = 1; length <= 1 << 16; length <<= 1) {
+      byte[] data = randomBytes(random, length + 1);
+      check(data, 0, length);
+      check(data, 1, length);
+    }
+  }
+
+  @Test
+  public void testAllSame() {
+    for (byte delimiter : DELIMITERS) {
+      byte[] data = new byte[67];
+      Arrays.fill(data, delimiter);
+      check(data, 0, data.length);
+      check(data, 3, 64);
+    }
+  }
+}
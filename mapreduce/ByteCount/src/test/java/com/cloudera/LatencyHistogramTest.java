@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  /**
+   * The largest value in value's bucket, by keeping its top 7 significant
+   * bits and setting the rest.
+   */
+  private static long naiveHighest(long value) {
+    int bits = 64 - Long.numberOfLeadingZeros(value);
+    if (bits <= 7) {
+      return value;
+    }
+    return value | ((1L << (bits - 7)) - 1);
+  }
+
+  private static List<Long> interestingValues() {
+    List<Long> values = new ArrayList<Long>();
+    for (long v = 0; v <= 1024; v++) {
+      values.add(v);
+    }
+    for (int shift = 0; shift < 63; shift++) {
+      long p = 1L << shift;
+      values.add(p - 1);
+      values.add(p);
+      values.add(p + 1);
+    }
+    values.add(Long.MAX_VALUE);
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      values.add((random.nextLong() & Long.MAX_VALUE)
+          >>> random.nextInt(63));
+    }
+    return values;
+  }
+
+  @Test
+  public void testBucketBounds() {
+    for (long v : interestingValues()) {
+      int index = LatencyHistogram.index(v);
+      long highest = naiveHighest(v);
+      assertEquals("highest of " + v, highest,
+          LatencyHistogram.highestValue(index));
+      // Every value up to the bound shares the bucket, and the next doesn't
+      assertEquals("index of " + highest, index,
+          LatencyHistogram.index(highest));
+      if (highest < Long.MAX_VALUE) {
+        assertEquals("index after " + highest, index + 1,
+            LatencyHistogram.index(highest + 1));
+      }
+      assertTrue("precision at " + v, highest - v <= v / 64);
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    Random random = new Random(1);
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<Long> values = new ArrayList<Long>();
+    for (int i = 0; i < 1000; i++) {
+      long v = random.nextInt(1 << random.nextInt(30));
+      values.add(v);
+      histogram.record(v);
+    }
+    histogram.record(Long.MAX_VALUE);
+    values.add(Long.MAX_VALUE);
+    Collections.sort(values);
+    assertEquals(values.size(), histogram.getTotalCount());
+    assertEquals((long)values.get(0), histogram.getMin());
+    assertEquals(Long.MAX_VALUE, histogram.getMax());
+    for (double p : new double[] { 0, 1, 25, 50, 90, 99, 99.9, 100 }) {
+      int rank = Math.max(1, (int)Math.ceil(p / 100 * values.size()));
+      long expected = values.get(rank - 1);
+      assertEquals("p" + p, naiveHighest(expected),
+          histogram.getValueAtPercentile(p));
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.protocol.CachePoolInfo;
+import org.apache.hadoop.io.nativeio.NativeIO;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Runs {@link PartitionScan} against a MiniDFSCluster with a generated
+ * store_sales-like table, so the effect of HDFS caching on scans can be
+ * measured without an Impala cluster. It lives on the test classpath, with
+ * hadoop-minicluster, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.cloudera.MiniClusterPartitionScan \
+ *     -Dexec.args="-cache pool1"
+ * </pre>
+ */
+public class MiniClusterPartitionScan {
+
+  /**
+   * Write a store_sales-like table of partitions consecutive days from
+   * 2002-01-01, each with one file of rowsPerPartition '|'-separated rows.
+   */
+  static void generateTable(FileSystem fs, Path table, int partitions,
+      int rowsPerPartition) throws IOException {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    Calendar day = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    day.clear();
+    day.set(2002, Calendar.JANUARY, 1);
+    long id = 0;
+    for (int p = 0; p < partitions; p++) {
+      String date = format.format(day.getTime());
+      Path file = new Path(table, "ss_date=" + date + "/data.txt");
+      OutputStream out = new BufferedOutputStream(fs.create(file, true));
+      try {
+        for (int r = 0; r < rowsPerPartition; r++) {
+          String row = id++ + "|" + date + "|" + (id * 2654435761L % 100000)
+              + "|store-" + (r % 100) + "\n";
+          out.write(row.getBytes("UTF-8"));
+        }
+      } finally {
+        out.close();
+      }
+      day.add(Calendar.DAY_OF_MONTH, 1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+    Options options = PartitionScan.createOptions();
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("datanodes (default 1)").create("datanodes"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("generated partitions (default 365)")
+        .create("partitions"));
+    options.addOption(OptionBuilder.withArgName("n").hasArg()
+        .withDescription("generated rows per partition (default 20000)")
+        .create("rows"));
+    options.addOption(OptionBuilder.withArgName("bytes").hasArg()
+        .withDescription("datanode cache capacity, within ulimit -l "
+            + "(default 256MB)").create("cacheMemory"));
+    CommandLine line = new BasicParser().parse(options, remArgs);
+    String cachePool = line.getOptionValue("cache");
+
+    if (cachePool != null && !NativeIO.isAvailable()) {
+      System.err.println("-cache needs the native hadoop library to "
+          + "cache blocks in a MiniDFSCluster");
+      System.exit(1);
+    }
+    conf.setLong("dfs.blocksize", 8 * 1024 * 1024);
+    conf.setLong("dfs.datanode.max.locked.memory", Long.parseLong(
+        line.getOptionValue("cacheMemory", "" + 256 * 1024 * 1024)));
+    conf.setLong("dfs.namenode.path.based.cache.refresh.interval.ms", 1000);
+    conf.setLong("dfs.cachereport.intervalMsec", 1000);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(
+        Integer.parseInt(line.getOptionValue("datanodes", "1"))).build();
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path table = new Path(line.getOptionValue("table",
+          "/test-warehouse/store_sales"));
+      int partitions =
+          Integer.parseInt(line.getOptionValue("partitions", "365"));
+      int rows = Integer.parseInt(line.getOptionValue("rows", "20000"));
+      System.out.println("Generating " + partitions + " partitions of "
+          + rows + " rows in " + table);
+      generateTable(fs, table, partitions, rows);
+      if (cachePool != null) {
+        new HdfsAdmin(cluster.getURI(), conf).addCachePool(
+            new CachePoolInfo(cachePool));
+      }
+      PartitionScan.run(conf, fs, table, line);
+    } finally {
+      cluster.shutdown();
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PartitionPredicateTest {
+
+  @Test
+  public void testParseQueries() {
+    // As in scripts/impala/sql
+    PartitionPredicate p = PartitionPredicate.parse("select count(*) from "
+        + "tpcds1000gb.store_sales where ss_date>='2002-08-04';");
+    assertEquals("ss_date", p.getColumn());
+    assertEquals("ss_date>='2002-08-04'", p.toString());
+    p = PartitionPredicate.parse(
+        "SELECT COUNT(*) FROM store_sales WHERE ss_date < '2002-11-22'");
+    assertEquals("ss_date<'2002-11-22'", p.toString());
+    assertNull(PartitionPredicate.parse(
+        "select count(*) from tpcds1000gb.store_sales;"));
+    assertNull(PartitionPredicate.parse("  SELECT count(*) FROM t"));
+  }
+
+  @Test
+  public void testParseBare() {
+    for (String op : new String[] { ">=", "<=", "!=", "<>", "=", "<", ">" }) {
+      PartitionPredicate p = PartitionPredicate.parse("ss_date" + op + "'x'");
+      assertEquals("ss_date" + op + "'x'", p.toString());
+      p = PartitionPredicate.parse("ss_date " + op + " 'x'");
+      assertEquals("ss_date" + op + "'x'", p.toString());
+    }
+    assertEquals("ss_date=''", PartitionPredicate.parse("ss_date=''")
+        .toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseUnquoted() {
+    PartitionPredicate.parse("ss_date>=2003");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseBadWhere() {
+    PartitionPredicate.parse("select count(*) from t where ss_date");
+  }
+
+  @Test
+  public void testAccept() {
+    String[] values = { "2002-08-03", "2002-08-04", "2002-08-05", "2003",
+        "2003-01-01" };
+    String[] ops = { ">=", ">", "<=", "<", "=", "!=", "<>" };
+    for (String op : ops) {
+      PartitionPredicate p = PartitionPredicate.parse(
+          "ss_date" + op + "'2002-08-04'");
+      for (String value : values) {
+        int cmp = value.compareTo("2002-08-04");
+        boolean expected = op.equals(">=") ? cmp >= 0
+            : op.equals(">") ? cmp > 0
+            : op.equals("<=") ? cmp <= 0
+            : op.equals("<") ? cmp < 0
+            : op.equals("=") ? cmp == 0
+            : cmp != 0;
+        assertEquals(op + " " + value, expected,
+            p.accept("ss_date=" + value));
+      }
+    }
+    // Compared as strings, like Impala's string partition columns
+    PartitionPredicate p = PartitionPredicate.parse("ss_date>='2003'");
+    assertTrue(p.accept("ss_date=2003-01-01"));
+    assertFalse(p.accept("ss_date=2002-12-31"));
+    // Other columns, and files that aren't partitions, are kept
+    assertTrue(p.accept("ss_store=1"));
+    assertTrue(p.accept("_SUCCESS"));
+  }
+}
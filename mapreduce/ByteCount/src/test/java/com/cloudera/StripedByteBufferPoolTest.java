@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StripedByteBufferPoolTest {
+
+  /**
+   * The smallest class, 4KB << c for c up to 18, that holds length bytes.
+   */
+  private static int naiveSizeClass(int length) {
+    for (int c = 0; c <= 18; c++) {
+      if (4096L << c >= length) {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void testSizeClass() {
+    for (int length = 0; length <= 70000; length++) {
+      assertEquals("length " + length, naiveSizeClass(length),
+          StripedByteBufferPool.sizeClass(length));
+    }
+    for (int shift = 0; shift < 31; shift++) {
+      int p = 1 << shift;
+      for (int length : new int[] { p - 1, p, p + 1 }) {
+        assertEquals("length " + length, naiveSizeClass(length),
+            StripedByteBufferPool.sizeClass(length));
+      }
+    }
+    assertEquals(18, StripedByteBufferPool.sizeClass(1 << 30));
+    assertEquals(-1, StripedByteBufferPool.sizeClass((1 << 30) + 1));
+    assertEquals(-1, StripedByteBufferPool.sizeClass(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testGetAndPut() {
+    StripedByteBufferPool pool = new StripedByteBufferPool();
+    for (boolean direct : new boolean[] { false, true }) {
+      ByteBuffer buf = pool.getBuffer(direct, 5000);
+      assertEquals(8192, buf.capacity());
+      assertEquals(direct, buf.isDirect());
+      buf.position(10);
+      pool.putBuffer(buf);
+      ByteBuffer again = pool.getBuffer(direct, 8192);
+      assertSame(buf, again);
+      assertEquals(0, again.position());
+      assertEquals(8192, again.limit());
+      // Not a class size, so not pooled
+      ByteBuffer odd = direct ? ByteBuffer.allocateDirect(5000)
+          : ByteBuffer.allocate(5000);
+      pool.putBuffer(odd);
+      assertEquals(8192, pool.getBuffer(direct, 5000).capacity());
+    }
+    // Direct and heap buffers don't mix
+    ByteBuffer heap = pool.getBuffer(false, 4096);
+    pool.putBuffer(heap);
+    assertTrue(pool.getBuffer(true, 4096).isDirect());
+  }
+
+  @Test
+  public void testBound() {
+    // Room for two 4KB buffers in the free list, after two in the thread's
+    // own cache
+    StripedByteBufferPool pool = new StripedByteBufferPool(8192);
+    List<ByteBuffer> put = new ArrayList<ByteBuffer>();
+    for (int i = 0; i < 5; i++) {
+      put.add(pool.getBuffer(false, 4096));
+    }
+    for (ByteBuffer buf : put) {
+      pool.putBuffer(buf);
+    }
+    Set<ByteBuffer> pooled =
+        Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    pooled.addAll(put);
+    for (int i = 0; i < 4; i++) {
+      ByteBuffer buf = pool.getBuffer(false, 4096);
+      assertTrue("buffer " + i + " reused", pooled.remove(buf));
+    }
+    // The fifth was dropped
+    ByteBuffer fresh = pool.getBuffer(false, 4096);
+    assertFalse(pooled.contains(fresh));
+    assertNotSame(put.get(4), fresh);
+  }
+}
@@ -2,17 +2,26 @@ package com.cloudera;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.InvalidParameterException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants.DatanodeReportType;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.*;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
@@ -21,29 +30,117 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 public class GenerateRandom {
+  /**
+   * A split with nothing to read, carrying the host its generator task
+   * should run on and the number of bytes it is expected to write.
+   */
   private static class SyntheticInputSplit extends InputSplit implements Writable {
+    private String host;
+    private long length;
+
+    public SyntheticInputSplit() {
+    }
+
+    SyntheticInputSplit(String host, long length) {
+      this.host = host;
+      this.length = length;
+    }
+
     @Override
-    public void readFields(DataInput arg0) throws IOException {
+    public void readFields(DataInput in) throws IOException {
+      host = in.readBoolean() ? Text.readString(in) : null;
+      length = in.readLong();
     }
 
     @Override
-    public void write(DataOutput arg0) throws IOException {
+    public void write(DataOutput out) throws IOException {
+      out.writeBoolean(host != null);
+      if (host != null) {
+        Text.writeString(out, host);
+      }
+      out.writeLong(length);
     }
 
     @Override
     public long getLength() throws IOException, InterruptedException {
-      return 0;
+      return length;
     }
 
     @Override
     public String[] getLocations() throws IOException, InterruptedException {
-      return new String[0];
+      return host == null ? new String[0] : new String[] { host };
+    }
+  }
+
+  /**
+   * Local file listing one target host per line, like scripts/hosts.txt.
+   * If unset, splits are spread over the live HDFS datanodes.
+   */
+  public static final String HOSTS_FILE = "grand.hosts.file";
+
+  private static List<InputSplit> createSyntheticSplits(JobContext job,
+      long bytesPerSplit) throws IOException {
+    String key = RandomWordInputFormat.NUM_MAP_TASKS;
+    int numSplits = job.getConfiguration().getInt(key, -1);
+    if (numSplits <= 0) {
+      throw new IOException(key + " is not set.");
+    }
+    List<String> hosts = getTargetHosts(job.getConfiguration());
+    ArrayList<InputSplit> splits = new ArrayList<InputSplit>();
+    for (int i = 0; i < numSplits; ++i) {
+      String host = hosts.isEmpty() ? null : hosts.get(i % hosts.size());
+      splits.add(new SyntheticInputSplit(host, bytesPerSplit));
+    }
+    return splits;
+  }
+
+  /**
+   * Hosts to assign splits to round-robin, in a stable order.
+   */
+  private static List<String> getTargetHosts(Configuration conf)
+      throws IOException {
+    List<String> hosts = new ArrayList<String>();
+    String hostsFile = conf.get(HOSTS_FILE);
+    if (hostsFile != null) {
+      BufferedReader reader = new BufferedReader(new FileReader(hostsFile));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.isEmpty() && !line.startsWith("#")) {
+            hosts.add(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      if (hosts.isEmpty()) {
+        throw new IOException("No hosts found in " + hostsFile);
+      }
+      return hosts;
+    }
+
+    FileSystem fs = FileSystem.get(conf);
+    if (fs instanceof DistributedFileSystem) {
+      try {
+        for (DatanodeInfo dn : ((DistributedFileSystem)fs)
+            .getDataNodeStats(DatanodeReportType.LIVE)) {
+          hosts.add(dn.getHostName());
+        }
+      } catch (IOException e) {
+        System.err.println("Could not list datanodes, splits will have no "
+            + "locations: " + e);
+      }
+      Collections.sort(hosts);
     }
+    return hosts;
   }
 
   public static class RandomWordInputFormat extends
@@ -52,53 +149,28 @@ public class GenerateRandom {
     public static final String DICTIONARY_FILE = "grand.dictionary.file";
     public static final String NUM_MAP_TASKS = "grand.num.map.tasks";
     public static final String WORDS_PER_TASK = "grand.words.per.task";
+    public static final String SEED = "grand.seed";
+    public static final long DEFAULT_SEED = 0x5eedL;
 
     @Override
     public List<InputSplit> getSplits(JobContext job) throws IOException {
-      int numSplits = job.getConfiguration().getInt(NUM_MAP_TASKS, -1);
-      if (numSplits <= 0) {
-        throw new IOException(NUM_MAP_TASKS + " is not set.");
-      }
-      ArrayList<InputSplit> splits = new ArrayList<InputSplit>();
-      for (int i = 0; i < numSplits; ++i) {
-        splits.add(new SyntheticInputSplit());
-      }
-      return splits;
+      Configuration conf = job.getConfiguration();
+      // Each word is followed by a newline in the output
+      double bytesPerWord = Dictionary.get(conf).averageLength() + 1;
+      return createSyntheticSplits(job,
+          (long)(conf.getLong(WORDS_PER_TASK, 0) * bytesPerWord));
     }
 
     @Override
     public RecordReader<Text, NullWritable> createRecordReader(
             InputSplit split, TaskAttemptContext context)
         throws IOException, InterruptedException {
-      String dictionaryFile = context.getConfiguration().get(DICTIONARY_FILE);
-      if (dictionaryFile == null) {
-        throw new IOException("must specify a " + DICTIONARY_FILE);
-      }
-      ArrayList<String> dictionary = loadDictionary(dictionaryFile);
+      Dictionary dictionary = Dictionary.get(context.getConfiguration());
       RandomWordRecordReader recordReader = new RandomWordRecordReader(dictionary);
       recordReader.initialize(split, context);
       return recordReader;
     }
 
-    private ArrayList<String> loadDictionary(String dictionaryFile) throws IOException {
-      BufferedReader reader = 
-          new BufferedReader(new FileReader(dictionaryFile));
-      try {
-        ArrayList<String> words = new ArrayList<String>();
-        while (true) {
-          String line = reader.readLine();
-          if (line == null) break;
-          words.add(line);
-        }
-        if (words.isEmpty()) {
-          throw new IOException("The dictionary was empty.");
-        }
-        return words;
-      } finally {
-        reader.close();
-      }
-    }
-
     public static void setNumMapTasks(Job job, int i) {
       job.getConfiguration().setInt(NUM_MAP_TASKS, i);
     }
@@ -107,31 +179,46 @@ public class GenerateRandom {
       job.getConfiguration().setLong(WORDS_PER_TASK, i);
     }
 
-    public static void setDictionary(Job job, String dictionaryFile) {
-      job.getConfiguration().set(DICTIONARY_FILE, dictionaryFile);
+    /**
+     * Set the dictionary path. It is also shipped through the distributed
+     * cache, so tasks read it locally when they can.
+     */
+    public static void setDictionary(Job job, String dictionaryFile)
+        throws IOException {
+      Path path = new Path(dictionaryFile);
+      FileSystem fs = path.getFileSystem(job.getConfiguration());
+      path = fs.makeQualified(path);
+      job.getConfiguration().set(DICTIONARY_FILE, path.toString());
+      job.addCacheFile(path.toUri());
+    }
+
+    public static void setSeed(Job job, long seed) {
+      job.getConfiguration().setLong(SEED, seed);
     }
 
     public static class RandomWordRecordReader extends
         RecordReader<Text, NullWritable> {
-      private final ArrayList<String> dictionary;
+      private final Dictionary dictionary;
       private long wordsToWrite = 0;
       private long createdWords = 0;
       private final NullWritable value = NullWritable.get();
       private final Text key = new Text();
-      private final Random random = new Random();
+      private SplitMix64 random;
 
-      RandomWordRecordReader(ArrayList<String> dictionary) {
+      RandomWordRecordReader(Dictionary dictionary) {
         this.dictionary = dictionary;
       }
 
       @Override
       public void initialize(InputSplit split, TaskAttemptContext context)
           throws IOException, InterruptedException {
-        this.wordsToWrite =
-            context.getConfiguration().getLong(WORDS_PER_TASK, -1);
+        Configuration conf = context.getConfiguration();
+        this.wordsToWrite = conf.getLong(WORDS_PER_TASK, -1);
         if (wordsToWrite < 0) {
           throw new IOException("must set " + WORDS_PER_TASK);
         }
+        int taskId = context.getTaskAttemptID().getTaskID().getId();
+        this.random = new SplitMix64(conf.getLong(SEED, DEFAULT_SEED), taskId);
       }
 
       @Override
@@ -139,7 +226,7 @@ public class GenerateRandom {
           InterruptedException {
         // If we still have records to create
         if (createdWords < wordsToWrite) {
-          key.set(dictionary.get(random.nextInt(dictionary.size())));
+          dictionary.copyWord(random.nextInt(dictionary.size()), key);
           ++createdWords;
           return true;
         } else {
@@ -170,28 +257,585 @@ public class GenerateRandom {
     }
   }
 
+  /**
+   * Fills byte arrays with synthetic data, a whole number of records at a
+   * time. Instances are per-task and need not be thread-safe.
+   */
+  interface Generator {
+    /** The size in bytes of one record; chunks are a multiple of this. */
+    int recordSize();
+
+    void generate(byte[] buf, int len);
+  }
+
+  /**
+   * Base class for InputFormats that emit chunks of raw generated bytes,
+   * to be written out as-is by {@link RawOutputFormat}.
+   */
+  public static abstract class RawGeneratorInputFormat extends
+      InputFormat<BytesWritable, NullWritable> {
+
+    public static final String BYTES_PER_TASK = "grand.bytes.per.task";
+    public static final String CHUNK_SIZE = "grand.chunk.size";
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+      return createSyntheticSplits(job,
+          job.getConfiguration().getLong(BYTES_PER_TASK, 0));
+    }
+
+    @Override
+    public RecordReader<BytesWritable, NullWritable> createRecordReader(
+            InputSplit split, TaskAttemptContext context)
+        throws IOException, InterruptedException {
+      RawGeneratorRecordReader recordReader = new RawGeneratorRecordReader(this);
+      recordReader.initialize(split, context);
+      return recordReader;
+    }
+
+    protected abstract Generator createGenerator(Configuration conf,
+        SplitMix64 random) throws IOException;
+
+    public static void setBytesPerTask(Job job, long i) {
+      job.getConfiguration().setLong(BYTES_PER_TASK, i);
+    }
+  }
+
+  static class RawGeneratorRecordReader extends
+      RecordReader<BytesWritable, NullWritable> {
+    private final RawGeneratorInputFormat format;
+    private final NullWritable value = NullWritable.get();
+    private final BytesWritable key = new BytesWritable();
+    private Generator generator;
+    private byte[] chunk;
+    private long bytesToWrite = 0;
+    private long createdBytes = 0;
+
+    RawGeneratorRecordReader(RawGeneratorInputFormat format) {
+      this.format = format;
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context)
+        throws IOException, InterruptedException {
+      Configuration conf = context.getConfiguration();
+      int taskId = context.getTaskAttemptID().getTaskID().getId();
+      SplitMix64 random = new SplitMix64(conf.getLong(
+          RandomWordInputFormat.SEED, RandomWordInputFormat.DEFAULT_SEED),
+          taskId);
+      generator = format.createGenerator(conf, random);
+
+      // Only ever emit whole records
+      int recordSize = generator.recordSize();
+      bytesToWrite =
+          conf.getLong(RawGeneratorInputFormat.BYTES_PER_TASK, -1);
+      if (bytesToWrite < 0) {
+        throw new IOException("must set "
+            + RawGeneratorInputFormat.BYTES_PER_TASK);
+      }
+      bytesToWrite -= bytesToWrite % recordSize;
+      int chunkSize = conf.getInt(RawGeneratorInputFormat.CHUNK_SIZE,
+          RawGeneratorInputFormat.DEFAULT_CHUNK_SIZE);
+      chunkSize = Math.max(recordSize, chunkSize - chunkSize % recordSize);
+      chunk = new byte[chunkSize];
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+      if (createdBytes >= bytesToWrite) {
+        return false;
+      }
+      int len = (int)Math.min(chunk.length, bytesToWrite - createdBytes);
+      generator.generate(chunk, len);
+      key.set(chunk, 0, len);
+      createdBytes += len;
+      return true;
+    }
+
+    @Override
+    public BytesWritable getCurrentKey() {
+      return key;
+    }
+
+    @Override
+    public NullWritable getCurrentValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() {
+      return bytesToWrite == 0 ? 1.0f : (float)createdBytes / bytesToWrite;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  /**
+   * Random bytes drawn from a configurable distribution, for ByteCount.
+   * <p>
+   * The distribution is "uniform", "cycle" (0, 1, ..., 255, 0, ...) or
+   * "zipf:&lt;exponent&gt;". Random distributions are quantized into a
+   * 65536-entry lookup table, so the expected frequency of byte b is exactly
+   * (entries equal to b) / 65536.
+   */
+  public static class RandomBytesInputFormat extends RawGeneratorInputFormat {
+    public static final String DISTRIBUTION = "grand.bytes.distribution";
+
+    @Override
+    protected Generator createGenerator(Configuration conf,
+        final SplitMix64 random) throws IOException {
+      String distribution = conf.get(DISTRIBUTION, "uniform");
+      if (distribution.equals("cycle")) {
+        return new Generator() {
+          private int next = 0;
+
+          @Override
+          public int recordSize() {
+            return 1;
+          }
+
+          @Override
+          public void generate(byte[] buf, int len) {
+            for (int i = 0; i < len; i++) {
+              buf[i] = (byte)next++;
+            }
+          }
+        };
+      }
+      final byte[] table = buildTable(weights(distribution));
+      return new Generator() {
+        @Override
+        public int recordSize() {
+          return 1;
+        }
+
+        @Override
+        public void generate(byte[] buf, int len) {
+          // Four 16-bit table lookups per 64-bit random value
+          int i = 0;
+          for (; i + 4 <= len; i += 4) {
+            long r = random.nextLong();
+            buf[i] = table[(int)(r & 0xFFFF)];
+            buf[i + 1] = table[(int)((r >>> 16) & 0xFFFF)];
+            buf[i + 2] = table[(int)((r >>> 32) & 0xFFFF)];
+            buf[i + 3] = table[(int)((r >>> 48) & 0xFFFF)];
+          }
+          for (; i < len; i++) {
+            buf[i] = table[(int)(random.nextLong() & 0xFFFF)];
+          }
+        }
+      };
+    }
+
+    static double[] weights(String distribution) throws IOException {
+      double[] weights = new double[256];
+      if (distribution.equals("uniform")) {
+        Arrays.fill(weights, 1.0);
+      } else if (distribution.startsWith("zipf:")) {
+        double exponent =
+            Double.parseDouble(distribution.substring("zipf:".length()));
+        for (int i = 0; i < weights.length; i++) {
+          weights[i] = 1.0 / Math.pow(i + 1, exponent);
+        }
+      } else {
+        throw new IOException("Unknown " + DISTRIBUTION + " " + distribution);
+      }
+      return weights;
+    }
+
+    /**
+     * Quantize weights into a 65536-entry lookup table, handing leftover
+     * entries to the bytes with the largest rounding remainders.
+     */
+    static byte[] buildTable(double[] weights) {
+      final int size = 1 << 16;
+      double sum = 0;
+      for (double w : weights) {
+        sum += w;
+      }
+      int[] counts = new int[weights.length];
+      double[] remainders = new double[weights.length];
+      int assigned = 0;
+      for (int i = 0; i < weights.length; i++) {
+        double exact = weights[i] / sum * size;
+        counts[i] = (int)exact;
+        remainders[i] = exact - counts[i];
+        assigned += counts[i];
+      }
+      for (; assigned < size; assigned++) {
+        int best = 0;
+        for (int i = 1; i < remainders.length; i++) {
+          if (remainders[i] > remainders[best]) {
+            best = i;
+          }
+        }
+        counts[best]++;
+        remainders[best] = -1;
+      }
+      byte[] table = new byte[size];
+      int pos = 0;
+      for (int i = 0; i < counts.length; i++) {
+        Arrays.fill(table, pos, pos + counts[i], (byte)i);
+        pos += counts[i];
+      }
+      return table;
+    }
+  }
+
+  /**
+   * Packed native (little-endian) doubles, as read by micro/vecsum.
+   * <p>
+   * "ramp" matches micro/create-float-file: 0.0, 0.5, ... wrapping after
+   * 100000. "random" draws uniformly from [0, 1).
+   */
+  public static class PackedDoublesInputFormat extends
+      RawGeneratorInputFormat {
+    public static final String MODE = "grand.doubles.mode";
+
+    @Override
+    protected Generator createGenerator(Configuration conf,
+        final SplitMix64 random) throws IOException {
+      String mode = conf.get(MODE, "ramp");
+      final boolean ramp;
+      if (mode.equals("ramp")) {
+        ramp = true;
+      } else if (mode.equals("random")) {
+        ramp = false;
+      } else {
+        throw new IOException("Unknown " + MODE + " " + mode);
+      }
+      return new Generator() {
+        private double next = 0.0;
+
+        @Override
+        public int recordSize() {
+          return 8;
+        }
+
+        @Override
+        public void generate(byte[] buf, int len) {
+          ByteBuffer out = ByteBuffer.wrap(buf, 0, len);
+          out.order(ByteOrder.LITTLE_ENDIAN);
+          while (out.hasRemaining()) {
+            if (ramp) {
+              if (next > 100000) {
+                next = 0.0;
+              }
+              out.putDouble(next);
+              next += 0.5;
+            } else {
+              out.putDouble((random.nextLong() >>> 11) * 0x1.0p-53);
+            }
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Fixed-width, newline-terminated text records: a zero-padded record
+   * number, a '|' and a random alphanumeric payload.
+   */
+  public static class FixedWidthRecordInputFormat extends
+      RawGeneratorInputFormat {
+    public static final String RECORD_WIDTH = "grand.record.width";
+    public static final int DEFAULT_RECORD_WIDTH = 100;
+
+    private static final int ID_DIGITS = 16;
+    private static final byte[] ALPHABET =
+        ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789")
+            .getBytes();
+
+    @Override
+    protected Generator createGenerator(Configuration conf,
+        final SplitMix64 random) throws IOException {
+      final int width = conf.getInt(RECORD_WIDTH, DEFAULT_RECORD_WIDTH);
+      if (width < ID_DIGITS + 2) {
+        throw new IOException(RECORD_WIDTH + " must be at least "
+            + (ID_DIGITS + 2));
+      }
+      return new Generator() {
+        private long recordId = 0;
+
+        @Override
+        public int recordSize() {
+          return width;
+        }
+
+        @Override
+        public void generate(byte[] buf, int len) {
+          for (int rec = 0; rec < len; rec += width) {
+            long id = recordId++;
+            for (int i = ID_DIGITS - 1; i >= 0; i--) {
+              buf[rec + i] = (byte)('0' + (id % 10));
+              id /= 10;
+            }
+            buf[rec + ID_DIGITS] = '|';
+            int end = rec + width - 1;
+            for (int i = rec + ID_DIGITS + 1; i < end; i++) {
+              buf[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            buf[end] = '\n';
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Writes each key's bytes back to back with no separators or framing.
+   * <p>
+   * If {@link #WRITE_HISTOGRAM} is set, the per-byte histogram of each output
+   * file is also written to a "_histogram-" sidecar next to it, as 256 lines
+   * of "byte\tcount". ByteCount -verify sidecar checks its result against
+   * these; the leading underscore keeps them out of its input.
+   */
+  public static class RawOutputFormat extends
+      FileOutputFormat<BytesWritable, NullWritable> {
+    public static final String WRITE_HISTOGRAM = "grand.write.histogram";
+    public static final String HISTOGRAM_PREFIX = "_histogram-";
+
+    @Override
+    public RecordWriter<BytesWritable, NullWritable> getRecordWriter(
+        TaskAttemptContext context) throws IOException, InterruptedException {
+      final Path file = getDefaultWorkFile(context, "");
+      final FileSystem fs = file.getFileSystem(context.getConfiguration());
+      final FSDataOutputStream out = fs.create(file, false);
+      final long[] histogram =
+          context.getConfiguration().getBoolean(WRITE_HISTOGRAM, false) ?
+              new long[256] : null;
+      return new RecordWriter<BytesWritable, NullWritable>() {
+        @Override
+        public void write(BytesWritable key, NullWritable value)
+            throws IOException {
+          byte[] bytes = key.getBytes();
+          int len = key.getLength();
+          out.write(bytes, 0, len);
+          if (histogram != null) {
+            for (int i = 0; i < len; i++) {
+              histogram[bytes[i] & 0xFF]++;
+            }
+          }
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException {
+          out.close();
+          if (histogram != null) {
+            writeHistogram(fs,
+                new Path(file.getParent(), HISTOGRAM_PREFIX + file.getName()),
+                histogram);
+          }
+        }
+      };
+    }
+
+    private static void writeHistogram(FileSystem fs, Path path,
+        long[] histogram) throws IOException {
+      PrintStream out = new PrintStream(fs.create(path, false), false, "UTF-8");
+      try {
+        for (int i = 0; i < histogram.length; i++) {
+          out.println(i + "\t" + histogram[i]);
+        }
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * The dictionary's words, pre-encoded as UTF-8 into a single byte arena.
+   * <p>
+   * Word i occupies arena[offsets[i]] up to arena[offsets[i + 1]]. The
+   * dictionary is loaded once per JVM and shared by every reader in it.
+   */
+  static class Dictionary {
+    private static String loadedPath;
+    private static Dictionary loaded;
+
+    private final byte[] arena;
+    private final int[] offsets;
+
+    private Dictionary(byte[] arena, int[] offsets) {
+      this.arena = arena;
+      this.offsets = offsets;
+    }
+
+    int size() {
+      return offsets.length - 1;
+    }
+
+    double averageLength() {
+      return (double)offsets[size()] / size();
+    }
+
+    void copyWord(int i, Text text) {
+      text.set(arena, offsets[i], offsets[i + 1] - offsets[i]);
+    }
+
+    /**
+     * Returns the dictionary named by the configuration, loading it if this
+     * JVM has not already done so.
+     */
+    static synchronized Dictionary get(Configuration conf) throws IOException {
+      String dictionaryFile = conf.get(RandomWordInputFormat.DICTIONARY_FILE);
+      if (dictionaryFile == null) {
+        throw new IOException("must specify a "
+            + RandomWordInputFormat.DICTIONARY_FILE);
+      }
+      if (!dictionaryFile.equals(loadedPath)) {
+        loaded = load(conf, new Path(dictionaryFile));
+        loadedPath = dictionaryFile;
+      }
+      return loaded;
+    }
+
+    private static Dictionary load(Configuration conf, Path path)
+        throws IOException {
+      // Prefer the localized distributed cache copy, which is symlinked
+      // into the task's working directory under the file's name.
+      File local = new File(path.getName());
+      InputStream in;
+      if (local.isFile()) {
+        in = new FileInputStream(local);
+      } else {
+        in = path.getFileSystem(conf).open(path);
+      }
+      try {
+        return parse(in);
+      } finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Split newline-separated words without ever decoding them.
+     */
+    private static Dictionary parse(InputStream in) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      IOUtils.copyBytes(in, bytes, 64 * 1024, false);
+      byte[] raw = bytes.toByteArray();
+
+      byte[] arena = new byte[raw.length];
+      int[] offsets = new int[1024];
+      int numWords = 0;
+      int arenaLen = 0;
+      int wordStart = 0;
+      for (int i = 0; i <= raw.length; i++) {
+        if (i < raw.length && raw[i] != '\n') {
+          continue;
+        }
+        int wordEnd = i;
+        if (wordEnd > wordStart && raw[wordEnd - 1] == '\r') {
+          wordEnd--;
+        }
+        // Match BufferedReader.readLine: no word after a trailing newline
+        if (i < raw.length || wordEnd > wordStart) {
+          if (numWords + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          }
+          offsets[numWords++] = arenaLen;
+          System.arraycopy(raw, wordStart, arena, arenaLen,
+              wordEnd - wordStart);
+          arenaLen += wordEnd - wordStart;
+        }
+        wordStart = i + 1;
+      }
+      if (numWords == 0) {
+        throw new IOException("The dictionary was empty.");
+      }
+      offsets[numWords] = arenaLen;
+      return new Dictionary(arena, Arrays.copyOf(offsets, numWords + 1));
+    }
+  }
+
+  /**
+   * SplitMix64, an unsynchronized PRNG whose streams are derived from a job
+   * seed and a task index, so each task is reproducible and independent.
+   */
+  static class SplitMix64 {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    SplitMix64(long seed, int stream) {
+      this.state = mix(seed + mix(stream * GOLDEN_GAMMA));
+    }
+
+    long nextLong() {
+      state += GOLDEN_GAMMA;
+      return mix(state);
+    }
+
+    /**
+     * Uniform int in [0, bound), by multiplying out the high 32 bits.
+     */
+    int nextInt(int bound) {
+      return (int)(((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    private static long mix(long z) {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+    }
+  }
+
+  private static void usage() {
+    System.err.println(
+        "Usage: GenerateRandom <numMaps> <wordsPerTask> <outputBase> <dictionaryFile>");
+    System.err.println(
+        "       GenerateRandom <bytes|doubles|records> <numMaps> <bytesPerTask> <outputBase>");
+    System.exit(1);
+  }
+
   public static void main(String[] args) throws Exception {
     Configuration conf = new Configuration();
     String[] remArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
     if (remArgs.length != 4) {
-      System.err.println(
-          "Usage: GenerateRandom <numMaps> <wordsPerTask> <outputBase> <dictionaryFile>");
-      System.exit(1);
-    }
-    int numMapTasks = Integer.parseInt(remArgs[0]);
-    long wordsPerTask = Long.parseLong(remArgs[1]);
-    Path outputBase = new Path(remArgs[2]);
-    String dictionaryFile = remArgs[3];
+      usage();
+    }
     Job job = new Job(conf, "GenerateRandom");
     job.setJarByClass(GenerateRandom.class);
     job.setNumReduceTasks(0);
-    job.setInputFormatClass(RandomWordInputFormat.class);
-    RandomWordInputFormat.setNumMapTasks(job, numMapTasks);
-    RandomWordInputFormat.setWordsPerTask(job, wordsPerTask);
-    RandomWordInputFormat.setDictionary(job, dictionaryFile);
-    TextOutputFormat.setOutputPath(job, outputBase);
-    job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(NullWritable.class);
+
+    Class<? extends RawGeneratorInputFormat> rawFormat = null;
+    if (remArgs[0].equals("bytes")) {
+      rawFormat = RandomBytesInputFormat.class;
+    } else if (remArgs[0].equals("doubles")) {
+      rawFormat = PackedDoublesInputFormat.class;
+    } else if (remArgs[0].equals("records")) {
+      rawFormat = FixedWidthRecordInputFormat.class;
+    }
+
+    if (rawFormat != null) {
+      job.setInputFormatClass(rawFormat);
+      if (rawFormat == RandomBytesInputFormat.class
+          && conf.get(RawOutputFormat.WRITE_HISTOGRAM) == null) {
+        job.getConfiguration().setBoolean(RawOutputFormat.WRITE_HISTOGRAM, true);
+      }
+      RandomWordInputFormat.setNumMapTasks(job, Integer.parseInt(remArgs[1]));
+      RawGeneratorInputFormat.setBytesPerTask(job, Long.parseLong(remArgs[2]));
+      job.setOutputFormatClass(RawOutputFormat.class);
+      RawOutputFormat.setOutputPath(job, new Path(remArgs[3]));
+      job.setOutputKeyClass(BytesWritable.class);
+      job.setOutputValueClass(NullWritable.class);
+    } else {
+      int numMapTasks = Integer.parseInt(remArgs[0]);
+      long wordsPerTask = Long.parseLong(remArgs[1]);
+      Path outputBase = new Path(remArgs[2]);
+      String dictionaryFile = remArgs[3];
+      job.setInputFormatClass(RandomWordInputFormat.class);
+      RandomWordInputFormat.setNumMapTasks(job, numMapTasks);
+      RandomWordInputFormat.setWordsPerTask(job, wordsPerTask);
+      RandomWordInputFormat.setDictionary(job, dictionaryFile);
+      TextOutputFormat.setOutputPath(job, outputBase);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(NullWritable.class);
+    }
 
     System.exit(job.waitForCompletion(true) ? 0 : 1);
   }
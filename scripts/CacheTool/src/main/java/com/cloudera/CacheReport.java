@@ -0,0 +1,510 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveEntry;
+import org.apache.hadoop.hdfs.protocol.CacheDirectiveInfo;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Walks a directory tree and reports how its blocks are cached.
+ * <p>
+ * Cached and uncached bytes are aggregated per datanode, per cache directive
+ * and per partition (the nearest "key=value" ancestor directory). Blocks with
+ * fewer cached replicas than their directive asks for are flagged, and the
+ * per-datanode cached bytes are summarized in a skew table, since a single
+ * hot node is enough to make a benchmark straggle.
+ */
+public class CacheReport {
+
+  /** Partition directories look like ss_date=2002-11-22. */
+  private static final String PARTITION_SEPARATOR = "=";
+
+  /** How many under-cached blocks to print before summarizing. */
+  private static final int MAX_PRINTED_UNDER_CACHED = 20;
+
+  private final DistributedFileSystem fs;
+  private final HdfsAdmin admin;
+  private final int numThreads;
+
+  private final Map<String, Stats> datanodes = new TreeMap<String, Stats>();
+  private final Map<String, Stats> directives = new TreeMap<String, Stats>();
+  private final Map<String, Stats> partitions = new TreeMap<String, Stats>();
+  private final List<UnderCachedBlock> underCached =
+      new ArrayList<UnderCachedBlock>();
+  private final Stats total = new Stats();
+
+  /**
+   * Cached vs. uncached byte counts for one aggregation key.
+   */
+  static class Stats {
+    long cachedBytes;
+    long uncachedBytes;
+    long blocks;
+    long underCachedBlocks;
+    long cacheUsed = -1;
+    long cacheCapacity = -1;
+
+    long totalBytes() {
+      return cachedBytes + uncachedBytes;
+    }
+
+    double hitRatio() {
+      long t = totalBytes();
+      return t == 0 ? 0.0 : (double)cachedBytes / t;
+    }
+  }
+
+  /**
+   * A block with fewer cached replicas than its directive's replication.
+   */
+  static class UnderCachedBlock {
+    final String path;
+    final long offset;
+    final long length;
+    final int cachedReplicas;
+    final int wantedReplicas;
+
+    UnderCachedBlock(String path, long offset, long length,
+        int cachedReplicas, int wantedReplicas) {
+      this.path = path;
+      this.offset = offset;
+      this.length = length;
+      this.cachedReplicas = cachedReplicas;
+      this.wantedReplicas = wantedReplicas;
+    }
+  }
+
+  /**
+   * A cache directive's path and requested replication.
+   */
+  private static class Directive {
+    final String key;
+    final String path;
+    final int replication;
+
+    Directive(String key, String path, int replication) {
+      this.key = key;
+      this.path = path;
+      this.replication = replication;
+    }
+  }
+
+  private static class FileBlocks {
+    final FileStatus status;
+    final BlockLocation[] locations;
+
+    FileBlocks(FileStatus status, BlockLocation[] locations) {
+      this.status = status;
+      this.locations = locations;
+    }
+  }
+
+  public CacheReport(DistributedFileSystem fs, HdfsAdmin admin,
+      int numThreads) {
+    this.fs = fs;
+    this.admin = admin;
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Walk the tree rooted at path and aggregate its cache state.
+   */
+  public void run(Path root) throws IOException {
+    List<Directive> dirs = loadDirectives();
+    for (DatanodeInfo dn : fs.getDataNodeStats()) {
+      Stats s = get(datanodes, dn.getHostName());
+      s.cacheUsed = dn.getCacheUsed();
+      s.cacheCapacity = dn.getCacheCapacity();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<FileStatus> files = listFiles(executor, root);
+      System.out.println("Found " + files.size() + " files under " + root);
+      for (FileBlocks fb : getBlockLocations(executor, files)) {
+        aggregate(fb, dirs);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<Directive> loadDirectives() throws IOException {
+    List<Directive> dirs = new ArrayList<Directive>();
+    RemoteIterator<CacheDirectiveEntry> it = admin.listCacheDirectives(null);
+    while (it.hasNext()) {
+      CacheDirectiveInfo info = it.next().getInfo();
+      Short replication = info.getReplication();
+      dirs.add(new Directive(info.getId() + ":" + info.getPath(),
+          info.getPath().toUri().getPath(),
+          replication == null ? 1 : replication.intValue()));
+    }
+    return dirs;
+  }
+
+  /**
+   * List every file under root, one directory level at a time, with each
+   * level's listings issued in parallel.
+   */
+  private List<FileStatus> listFiles(ExecutorService executor, Path root)
+      throws IOException {
+    List<FileStatus> files = new ArrayList<FileStatus>();
+    FileStatus rootStatus = fs.getFileStatus(root);
+    if (!rootStatus.isDirectory()) {
+      files.add(rootStatus);
+      return files;
+    }
+    List<Path> level = new ArrayList<Path>();
+    level.add(root);
+    while (!level.isEmpty()) {
+      List<Callable<FileStatus[]>> listings =
+          new ArrayList<Callable<FileStatus[]>>();
+      for (final Path dir : level) {
+        listings.add(new Callable<FileStatus[]>() {
+          @Override
+          public FileStatus[] call() throws IOException {
+            return fs.listStatus(dir);
+          }
+        });
+      }
+      List<Path> next = new ArrayList<Path>();
+      for (FileStatus[] listing : invokeAll(executor, listings)) {
+        for (FileStatus stat : listing) {
+          if (stat.isDirectory()) {
+            next.add(stat.getPath());
+          } else {
+            files.add(stat);
+          }
+        }
+      }
+      level = next;
+    }
+    return files;
+  }
+
+  private List<FileBlocks> getBlockLocations(ExecutorService executor,
+      List<FileStatus> files) throws IOException {
+    List<Callable<FileBlocks>> lookups = new ArrayList<Callable<FileBlocks>>();
+    for (final FileStatus stat : files) {
+      lookups.add(new Callable<FileBlocks>() {
+        @Override
+        public FileBlocks call() throws IOException {
+          return new FileBlocks(stat,
+              fs.getFileBlockLocations(stat, 0, stat.getLen()));
+        }
+      });
+    }
+    return invokeAll(executor, lookups);
+  }
+
+  private static <T> List<T> invokeAll(ExecutorService executor,
+      List<Callable<T>> tasks) throws IOException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    try {
+      for (Future<T> f : executor.invokeAll(tasks)) {
+        results.add(f.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while walking tree", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    return results;
+  }
+
+  private void aggregate(FileBlocks fb, List<Directive> dirs)
+      throws IOException {
+    String path = fb.status.getPath().toUri().getPath();
+    Directive directive = findDirective(dirs, path);
+    Stats dirStats = directive == null ? null : get(directives, directive.key);
+    Stats partStats = get(partitions, partitionOf(fb.status.getPath()));
+    if (fb.locations == null) {
+      return;
+    }
+
+    for (BlockLocation loc : fb.locations) {
+      final long len = loc.getLength();
+      String[] cachedHosts = loc.getCachedHosts();
+      List<String> cached = new ArrayList<String>(cachedHosts.length);
+      Collections.addAll(cached, cachedHosts);
+
+      // Per-replica accounting for the datanodes
+      for (String host : loc.getHosts()) {
+        Stats dn = get(datanodes, host);
+        dn.blocks++;
+        if (cached.contains(host)) {
+          dn.cachedBytes += len;
+        } else {
+          dn.uncachedBytes += len;
+        }
+      }
+
+      // Logical accounting for everything else
+      boolean isCached = cachedHosts.length > 0;
+      boolean isUnderCached = directive != null
+          && cachedHosts.length < directive.replication;
+      if (isUnderCached) {
+        underCached.add(new UnderCachedBlock(path, loc.getOffset(), len,
+            cachedHosts.length, directive.replication));
+      }
+      Stats[] all = dirStats == null ?
+          new Stats[] { partStats, total } :
+          new Stats[] { dirStats, partStats, total };
+      for (Stats s : all) {
+        s.blocks++;
+        if (isCached) {
+          s.cachedBytes += len;
+        } else {
+          s.uncachedBytes += len;
+        }
+        if (isUnderCached) {
+          s.underCachedBlocks++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the most specific directive covering path, or null.
+   */
+  private static Directive findDirective(List<Directive> dirs, String path) {
+    Directive best = null;
+    for (Directive d : dirs) {
+      boolean covers = path.equals(d.path)
+          || path.startsWith(d.path.endsWith("/") ? d.path : d.path + "/");
+      if (covers && (best == null || d.path.length() > best.path.length())) {
+        best = d;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the nearest "key=value" ancestor, or the parent directory if the
+   * file is not in a partitioned layout.
+   */
+  private static String partitionOf(Path file) {
+    for (Path p = file.getParent(); p != null; p = p.getParent()) {
+      if (p.getName().contains(PARTITION_SEPARATOR)) {
+        return p.toUri().getPath();
+      }
+    }
+    Path parent = file.getParent();
+    return parent == null ? "/" : parent.toUri().getPath();
+  }
+
+  private static Stats get(Map<String, Stats> map, String key) {
+    Stats s = map.get(key);
+    if (s == null) {
+      s = new Stats();
+      map.put(key, s);
+    }
+    return s;
+  }
+
+  public void print() {
+    System.out.println(String.format("Total: %d blocks, %d cached bytes, "
+        + "%d uncached bytes, hit ratio %.3f, %d under-cached blocks",
+        total.blocks, total.cachedBytes, total.uncachedBytes,
+        total.hitRatio(), total.underCachedBlocks));
+
+    printTable("Directive", directives);
+    printTable("Partition", partitions);
+    printTable("Datanode", datanodes);
+    printSkew();
+
+    if (!underCached.isEmpty()) {
+      System.out.println();
+      System.out.println("Under-cached blocks:");
+      int printed = 0;
+      for (UnderCachedBlock b : underCached) {
+        if (printed++ == MAX_PRINTED_UNDER_CACHED) {
+          System.out.println("  ... and "
+              + (underCached.size() - MAX_PRINTED_UNDER_CACHED) + " more");
+          break;
+        }
+        System.out.println(String.format("  %s@%d (%d bytes): cached %d of %d",
+            b.path, b.offset, b.length, b.cachedReplicas, b.wantedReplicas));
+      }
+    }
+  }
+
+  private static void printTable(String name, Map<String, Stats> map) {
+    System.out.println();
+    System.out.println(String.format("%-60s %8s %16s %16s %6s %6s",
+        name, "blocks", "cached", "uncached", "ratio", "under"));
+    for (Map.Entry<String, Stats> e : map.entrySet()) {
+      Stats s = e.getValue();
+      System.out.println(String.format("%-60s %8d %16d %16d %6.3f %6d",
+          e.getKey(), s.blocks, s.cachedBytes, s.uncachedBytes, s.hitRatio(),
+          s.underCachedBlocks));
+    }
+  }
+
+  /**
+   * Print how evenly cached bytes are spread over the datanodes.
+   */
+  private void printSkew() {
+    Skew skew = new Skew(datanodes);
+    System.out.println();
+    System.out.println("Cache skew across " + datanodes.size() + " datanodes:");
+    System.out.println(String.format("%-40s %16s %8s %16s %16s",
+        "datanode", "cached", "vs.mean", "cacheUsed", "cacheCapacity"));
+    for (Map.Entry<String, Stats> e : datanodes.entrySet()) {
+      Stats s = e.getValue();
+      System.out.println(String.format("%-40s %16d %8.3f %16d %16d",
+          e.getKey(), s.cachedBytes, skew.relative(s.cachedBytes),
+          s.cacheUsed, s.cacheCapacity));
+    }
+    System.out.println(String.format("mean %.0f, stddev %.0f, cv %.3f, "
+        + "min/mean %.3f, max/mean %.3f", skew.mean, skew.stddev, skew.cv(),
+        skew.relative(skew.min), skew.relative(skew.max)));
+  }
+
+  /**
+   * Summary statistics of the cached bytes per datanode.
+   */
+  private static class Skew {
+    double mean;
+    double stddev;
+    long min;
+    long max;
+
+    Skew(Map<String, Stats> nodes) {
+      if (nodes.isEmpty()) {
+        return;
+      }
+      min = Long.MAX_VALUE;
+      long sum = 0;
+      for (Stats s : nodes.values()) {
+        sum += s.cachedBytes;
+        min = Math.min(min, s.cachedBytes);
+        max = Math.max(max, s.cachedBytes);
+      }
+      mean = (double)sum / nodes.size();
+      double sq = 0;
+      for (Stats s : nodes.values()) {
+        sq += (s.cachedBytes - mean) * (s.cachedBytes - mean);
+      }
+      stddev = Math.sqrt(sq / nodes.size());
+    }
+
+    double relative(long bytes) {
+      return mean == 0 ? 0.0 : bytes / mean;
+    }
+
+    double cv() {
+      return mean == 0 ? 0.0 : stddev / mean;
+    }
+  }
+
+  /**
+   * Write the report as JSON to the given local file.
+   */
+  public void writeJson(String file) throws IOException {
+    JsonGenerator json = new JsonFactory().createJsonGenerator(
+        new FileOutputStream(file), JsonEncoding.UTF8);
+    json.useDefaultPrettyPrinter();
+    try {
+      json.writeStartObject();
+      json.writeFieldName("total");
+      writeStats(json, total);
+      writeStatsMap(json, "directives", directives);
+      writeStatsMap(json, "partitions", partitions);
+      writeStatsMap(json, "datanodes", datanodes);
+
+      Skew skew = new Skew(datanodes);
+      json.writeObjectFieldStart("skew");
+      json.writeNumberField("mean", skew.mean);
+      json.writeNumberField("stddev", skew.stddev);
+      json.writeNumberField("cv", skew.cv());
+      json.writeNumberField("min", skew.min);
+      json.writeNumberField("max", skew.max);
+      json.writeEndObject();
+
+      json.writeArrayFieldStart("underCachedBlocks");
+      for (UnderCachedBlock b : underCached) {
+        json.writeStartObject();
+        json.writeStringField("path", b.path);
+        json.writeNumberField("offset", b.offset);
+        json.writeNumberField("length", b.length);
+        json.writeNumberField("cachedReplicas", b.cachedReplicas);
+        json.writeNumberField("wantedReplicas", b.wantedReplicas);
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeEndObject();
+    } finally {
+      json.close();
+    }
+    System.out.println("Wrote JSON report to " + file);
+  }
+
+  private static void writeStatsMap(JsonGenerator json, String name,
+      Map<String, Stats> map) throws IOException {
+    json.writeObjectFieldStart(name);
+    for (Map.Entry<String, Stats> e : map.entrySet()) {
+      json.writeFieldName(e.getKey());
+      writeStats(json, e.getValue());
+    }
+    json.writeEndObject();
+  }
+
+  private static void writeStats(JsonGenerator json, Stats s)
+      throws IOException {
+    json.writeStartObject();
+    json.writeNumberField("blocks", s.blocks);
+    json.writeNumberField("cachedBytes", s.cachedBytes);
+    json.writeNumberField("uncachedBytes", s.uncachedBytes);
+    json.writeNumberField("hitRatio", s.hitRatio());
+    json.writeNumberField("underCachedBlocks", s.underCachedBlocks);
+    if (s.cacheCapacity >= 0) {
+      json.writeNumberField("cacheUsed", s.cacheUsed);
+      json.writeNumberField("cacheCapacity", s.cacheCapacity);
+    }
+    json.writeEndObject();
+  }
+}
@@ -18,9 +18,11 @@
 
 package com.cloudera;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.net.URI;
 
 import org.apache.hadoop.conf.Configuration;
@@ -43,6 +45,9 @@ public class CacheTool {
     System.out.println("CacheTool removeAll");
     System.out.println("CacheTool cache <amount>");
     System.out.println("CacheTool locations <path>");
+    System.out.println(
+        "CacheTool report <path> [-threads <n>] [-json <file>]");
+    System.out.println("CacheTool evict <path> [-check] [-samples <n>]");
   }
 
   private static void removeAll() throws IOException {
@@ -110,6 +115,32 @@ public class CacheTool {
     }
   }
 
+  private static void evict(String[] args) throws IOException {
+    if (args.length < 2) {
+      usage();
+      System.exit(1);
+    }
+    boolean checkOnly = false;
+    int samples = 64;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("-check")) {
+        checkOnly = true;
+      } else if (args[i].equals("-samples") && i + 1 < args.length) {
+        samples = Integer.parseInt(args[++i]);
+      } else {
+        usage();
+        System.exit(1);
+      }
+    }
+    PageCacheEvictor evictor = new PageCacheEvictor(conf, samples);
+    List<File> files = evictor.localFiles(new Path(args[1]));
+    System.out.println("Before: " + evictor.residency(files));
+    if (!checkOnly) {
+      evictor.evict(files);
+      System.out.println("After:  " + evictor.residency(files));
+    }
+  }
+
   public static void main(String[] args) throws Exception {
 
     if (args.length == 0) {
@@ -118,6 +149,12 @@ public class CacheTool {
     }
 
     conf = new Configuration();
+    if (args[0].equals("evict")) {
+      // Works on local paths too, so handle it before assuming HDFS
+      evict(args);
+      System.out.println("Done!");
+      System.exit(0);
+    }
     URI uri = FileSystem.getDefaultUri(conf);
     DistributedFileSystem fs =
       (DistributedFileSystem)FileSystem.get(uri, conf);
@@ -140,6 +177,29 @@ public class CacheTool {
       }
       String path = args[1];
       printLocations(fs, path);
+    } else if (command.equals("report")) {
+      if (args.length < 2 || args.length % 2 != 0) {
+        usage();
+        System.exit(1);
+      }
+      int threads = 16;
+      String jsonFile = null;
+      for (int i = 2; i < args.length; i += 2) {
+        if (args[i].equals("-threads")) {
+          threads = Integer.parseInt(args[i + 1]);
+        } else if (args[i].equals("-json")) {
+          jsonFile = args[i + 1];
+        } else {
+          usage();
+          System.exit(1);
+        }
+      }
+      CacheReport report = new CacheReport(fs, admin, threads);
+      report.run(new Path(args[1]));
+      report.print();
+      if (jsonFile != null) {
+        report.writeJson(jsonFile);
+      }
     } else {
       usage();
       System.exit(-2);
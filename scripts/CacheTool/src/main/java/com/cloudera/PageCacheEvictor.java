@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+/**
+ * Evicts the files under a path from this host's page cache, instead of
+ * dropping the whole page cache with drop_caches.
+ * <p>
+ * For an HDFS path, the blocks of its files are looked up in the namenode
+ * and their block and meta files are found under this host's
+ * dfs.datanode.data.dir, so this has to run on every datanode, as a user
+ * that can read the data directories. For a local path, the files are
+ * evicted directly. Eviction is posix_fadvise(POSIX_FADV_DONTNEED), which
+ * only drops clean pages and needs the native hadoop library.
+ * <p>
+ * Residency is checked by mapping sampled pages of each file and asking
+ * MappedByteBuffer.isLoaded, which is mincore without touching the pages.
+ * Each page is unmapped as soon as it has been checked, since leaving them
+ * to the GC could run a large table past vm.max_map_count. A slice of one
+ * mapping of the whole file won't do, as slices always report loaded.
+ */
+public class PageCacheEvictor {
+  private static final int PAGE_SIZE = 4096;
+
+  /**
+   * The page cache residency of a set of local files.
+   */
+  public static class Residency {
+    public int files;
+    public long bytes;
+    public long sampledPages;
+    public long residentPages;
+
+    public double fraction() {
+      return sampledPages == 0 ? 0 : (double)residentPages / sampledPages;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d files, %d bytes, %.1f%% of %d sampled pages "
+          + "resident", files, bytes, 100.0 * fraction(), sampledPages);
+    }
+  }
+
+  private final Configuration conf;
+  private final int samplesPerFile;
+
+  public PageCacheEvictor(Configuration conf, int samplesPerFile) {
+    this.conf = conf;
+    this.samplesPerFile = samplesPerFile;
+  }
+
+  /**
+   * The local files that hold the data under path on this host.
+   */
+  public List<File> localFiles(Path path) throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    List<File> files = new ArrayList<File>();
+    RemoteIterator<LocatedFileStatus> it = fs.listFiles(path, true);
+    if (fs instanceof LocalFileSystem) {
+      while (it.hasNext()) {
+        files.add(((LocalFileSystem)fs).pathToFile(it.next().getPath()));
+      }
+    } else if (fs instanceof DistributedFileSystem) {
+      DistributedFileSystem dfs = (DistributedFileSystem)fs;
+      Set<String> blocks = new HashSet<String>();
+      while (it.hasNext()) {
+        LocatedFileStatus stat = it.next();
+        for (LocatedBlock block : dfs.getClient().getLocatedBlocks(
+            stat.getPath().toUri().getPath(), 0, stat.getLen())
+            .getLocatedBlocks()) {
+          blocks.add("blk_" + block.getBlock().getBlockId());
+        }
+      }
+      for (File dir : dataDirs()) {
+        findBlockFiles(dir, blocks, files);
+      }
+    } else {
+      throw new IOException("Can't map " + fs.getUri() + " to local files");
+    }
+    return files;
+  }
+
+  private List<File> dataDirs() throws IOException {
+    List<File> dirs = new ArrayList<File>();
+    for (String dir : conf.getTrimmedStrings("dfs.datanode.data.dir")) {
+      // Strip storage type prefixes like [DISK]
+      dir = dir.replaceFirst("^\\[\\w+\\]", "");
+      try {
+        URI uri = new URI(dir);
+        dirs.add(uri.getScheme() == null ? new File(dir)
+            : new File(uri.getPath()));
+      } catch (URISyntaxException e) {
+        dirs.add(new File(dir));
+      }
+    }
+    if (dirs.isEmpty()) {
+      throw new IOException("dfs.datanode.data.dir is not set");
+    }
+    return dirs;
+  }
+
+  /**
+   * Add the block files, and their meta files, of the named blocks.
+   */
+  private static void findBlockFiles(File dir, Set<String> blocks,
+      List<File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      String name = child.getName();
+      if (child.isDirectory()) {
+        findBlockFiles(child, blocks, files);
+      } else if (name.startsWith("blk_")) {
+        // blk_<id> or blk_<id>_<genstamp>.meta
+        int end = name.indexOf('_', "blk_".length());
+        if (blocks.contains(end < 0 ? name : name.substring(0, end))) {
+          files.add(child);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the given files from the page cache.
+   */
+  public void evict(List<File> files) throws IOException {
+    if (!NativeIO.isAvailable()) {
+      throw new IOException("Eviction needs the native hadoop library");
+    }
+    for (File file : files) {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        NativeIO.POSIX.getCacheManipulator().posixFadviseIfPossible(
+            file.getPath(), in.getFD(), 0, file.length(),
+            NativeIO.POSIX.POSIX_FADV_DONTNEED);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Sample how much of the given files is in the page cache.
+   */
+  public Residency residency(List<File> files) throws IOException {
+    Residency residency = new Residency();
+    for (File file : files) {
+      residency.files++;
+      residency.bytes += file.length();
+      long pages = (file.length() + PAGE_SIZE - 1) / PAGE_SIZE;
+      long samples = Math.min(pages, samplesPerFile);
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        for (long i = 0; i < samples; i++) {
+          long offset = pages * i / samples * PAGE_SIZE;
+          long len = Math.min(PAGE_SIZE, file.length() - offset);
+          residency.sampledPages++;
+          MappedByteBuffer page =
+              channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+          try {
+            if (page.isLoaded()) {
+              residency.residentPages++;
+            }
+          } finally {
+            NativeIO.POSIX.munmap(page);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return residency;
+  }
+}
@@ -0,0 +1,13 @@
+#!/bin/bash
+# Evict only the given path from the page cache of every host, unlike
+# drop_caches.sh. Runs as $EVICT_USER (hdfs by default), which must be able
+# to read the datanode's block files. Set EVICT_USER to empty to run as
+# yourself without sudo, e.g. as a member of the hdfs group.
+EVICT_USER=${EVICT_USER-hdfs}
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+cd $DIR
+RUN_AS=""
+if [ -n "$EVICT_USER" ]; then
+  RUN_AS="sudo -u $EVICT_USER"
+fi
+pssh -p4 -i -h hosts.txt "$RUN_AS hadoop jar $DIR/CacheTool/target/cachetool-1.0-SNAPSHOT.jar com.cloudera.CacheTool evict $1"